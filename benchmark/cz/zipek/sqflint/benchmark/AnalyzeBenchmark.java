@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.benchmark;
+
+import cz.zipek.sqflint.linter.Linter;
+import cz.zipek.sqflint.parser.ParseException;
+import cz.zipek.sqflint.sqf.SQFBlock;
+import java.io.StringReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Measures analysis of parsed file. Analysis changes state of the linter,
+ * so the file is parsed again before every invocation.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class AnalyzeBenchmark extends CorpusBenchmark {
+	private String preprocessed;
+	private Linter linter;
+	private SQFBlock block;
+	
+	@Override
+	protected void prepare() throws Exception {
+		preprocessed = preprocess();
+	}
+	
+	@Setup(Level.Invocation)
+	public void parse() throws ParseException {
+		linter = new Linter(new StringReader(preprocessed), options);
+		linter.setPreprocessor(preprocessor);
+		block = linter.CompilationUnit();
+	}
+	
+	@Benchmark
+	public Linter analyze() {
+		block.analyze(linter, null);
+		return linter;
+	}
+}
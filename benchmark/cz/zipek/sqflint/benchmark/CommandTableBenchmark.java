@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.benchmark;
+
+import cz.zipek.sqflint.linter.CommandTable;
+import cz.zipek.sqflint.linter.Options;
+import cz.zipek.sqflint.sqf.operators.Operator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares loading of commands from text dump and from compiled table,
+ * together with creation of options which loads the table.
+ * Both tables are read from memory, so only parsing is measured.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandTableBenchmark {
+	private byte[] source;
+	private byte[] compiled;
+	
+	@Setup
+	public void setUp() throws Exception {
+		source = load(CommandTable.SOURCE);
+		compiled = load(CommandTable.COMPILED);
+	}
+	
+	@Benchmark
+	public Map<String, Operator> parseText() throws IOException {
+		Map<String, Operator> operators = new HashMap<>();
+		CommandTable.parse(new ByteArrayInputStream(source), operators);
+		return operators;
+	}
+	
+	@Benchmark
+	public Map<String, Operator> readCompiled() throws IOException {
+		Map<String, Operator> operators = new HashMap<>();
+		CommandTable.read(new ByteArrayInputStream(compiled), operators);
+		return operators;
+	}
+	
+	@Benchmark
+	public Options createOptions() throws IOException {
+		return new Options();
+	}
+	
+	/**
+	 * @param name name of resource
+	 * @return contents of the resource
+	 * @throws IOException 
+	 */
+	private static byte[] load(String name) throws IOException {
+		try (InputStream in = CommandTable.class.getResourceAsStream(name)) {
+			if (in == null) {
+				throw new IOException("Missing resource " + name + ", build the project first.");
+			}
+			
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			byte[] chunk = new byte[8192];
+			int read;
+			while ((read = in.read(chunk)) >= 0) {
+				result.write(chunk, 0, read);
+			}
+			return result.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Inputs of benchmarks. Files are loaded from corpus directory, which is
+ * tests directory of the project unless sqflint.corpus property says otherwise.
+ * Input named synthetic-N is generated code containing N functions.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+final class Corpus {
+	private static final String SYNTHETIC = "synthetic-";
+	
+	private Corpus() {
+	}
+	
+	/**
+	 * @return directory containing benchmarked files
+	 */
+	static Path root() {
+		return Paths.get(System.getProperty("sqflint.corpus", "tests")).toAbsolutePath();
+	}
+	
+	/**
+	 * @param input name of file in corpus or synthetic input
+	 * @return path used as name of the input
+	 */
+	static Path path(String input) {
+		return root().resolve(input.startsWith(SYNTHETIC) ? input + ".sqf" : input);
+	}
+	
+	/**
+	 * @param input name of file in corpus or synthetic input
+	 * @return contents of the input
+	 * @throws IOException 
+	 */
+	static String load(String input) throws IOException {
+		if (input.startsWith(SYNTHETIC)) {
+			return synthetic(Integer.parseInt(input.substring(SYNTHETIC.length())));
+		}
+		
+		return new String(Files.readAllBytes(path(input)), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Generates code resembling usual mission scripts, with macros,
+	 * nested blocks and plenty of local variables.
+	 * 
+	 * @param functions number of generated functions
+	 * @return generated code
+	 */
+	static String synthetic(int functions) {
+		StringBuilder result = new StringBuilder();
+		
+		result.append("#define GVAR(x) bench_##x\n");
+		result.append("#define QUOTE(x) #x\n");
+		result.append("#define COUNT(x) (count (x))\n");
+		result.append("\n");
+		
+		for (int i = 0; i < functions; i++) {
+			result.append("GVAR(fnc_").append(i).append(") = {\n");
+			result.append("\tparams [\"_unit\", [\"_count\", ").append(i).append("]];\n");
+			result.append("\tprivate _items = [];\n");
+			result.append("\tfor \"_i\" from 0 to _count do {\n");
+			result.append("\t\tif (_i % 2 == 0) then {\n");
+			result.append("\t\t\t_items pushBack (_unit getVariable [QUOTE(GVAR(item_").append(i).append(")), _i]);\n");
+			result.append("\t\t} else {\n");
+			result.append("\t\t\t_items set [_i, format [\"%1 %2\", _i, COUNT(_items)]];\n");
+			result.append("\t\t};\n");
+			result.append("\t};\n");
+			result.append("\t{\n");
+			result.append("\t\tprivate _value = _x select 0;\n");
+			result.append("\t\thint str _value;\n");
+			result.append("\t} forEach _items;\n");
+			result.append("\t_items\n");
+			result.append("};\n");
+			result.append("\n");
+		}
+		
+		return result.toString();
+	}
+}
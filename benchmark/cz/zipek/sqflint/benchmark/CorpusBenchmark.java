@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.benchmark;
+
+import cz.zipek.sqflint.linter.Options;
+import cz.zipek.sqflint.output.VoidOutput;
+import cz.zipek.sqflint.preprocessor.SQFPreprocessor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Common setup of all benchmarks. Every benchmark runs against files
+ * of the corpus and synthetic inputs of two sizes.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class CorpusBenchmark {
+	@Param({ "folk_assignGear_red.sqf", "init.sqf", "macro.sqf", "synthetic-100", "synthetic-1000" })
+	public String input;
+	
+	protected String contents;
+	protected String source;
+	protected Options options;
+	// Preprocessor of the last preprocessed input, linter needs its macros
+	protected SQFPreprocessor preprocessor;
+	
+	@Setup
+	public void setUp() throws Exception {
+		contents = Corpus.load(input);
+		source = Corpus.path(input).toString();
+		
+		options = new Options();
+		options.setOutputFormatter(new VoidOutput());
+		options.setRootPath(Corpus.root().toString());
+		
+		prepare();
+	}
+	
+	/**
+	 * Prepares state of the benchmark once the input is loaded.
+	 * @throws Exception 
+	 */
+	protected void prepare() throws Exception {
+	}
+	
+	/**
+	 * @return input with macros expanded
+	 * @throws Exception 
+	 */
+	protected String preprocess() throws Exception {
+		preprocessor = new SQFPreprocessor(options, null);
+		return preprocessor.process(contents, source, true);
+	}
+}
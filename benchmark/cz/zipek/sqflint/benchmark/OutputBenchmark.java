@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.benchmark;
+
+import cz.zipek.sqflint.linter.Linter;
+import cz.zipek.sqflint.output.JSONOutput;
+import cz.zipek.sqflint.preprocessor.SQFPreprocessor;
+import java.io.StringReader;
+import java.util.List;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Measures building of json messages of linted file,
+ * including info about variables and macros.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class OutputBenchmark extends CorpusBenchmark {
+	private final Messages output = new Messages();
+	private Linter linter;
+	
+	@Override
+	protected void prepare() throws Exception {
+		options.setOutputVariables(true);
+		
+		SQFPreprocessor preprocessor = new SQFPreprocessor(options, null);
+		linter = new Linter(preprocessor.reader(new StringReader(contents), source, true), options);
+		linter.setPreprocessor(preprocessor);
+		linter.start();
+	}
+	
+	@Benchmark
+	public List<JSONObject> build() {
+		return output.build(linter);
+	}
+	
+	/**
+	 * Exposes messages built by json output.
+	 */
+	private static class Messages extends JSONOutput {
+		@Override
+		protected List<JSONObject> build(Linter linter) {
+			return super.build(linter);
+		}
+	}
+}
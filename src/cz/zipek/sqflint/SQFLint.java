@@ -1,12 +1,17 @@
 package cz.zipek.sqflint;
 
+import cz.zipek.sqflint.cache.DiskCache;
 import cz.zipek.sqflint.linter.Linter;
 import cz.zipek.sqflint.output.JSONOutput;
 import cz.zipek.sqflint.preprocessor.SQFPreprocessor;
-import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.cli.CommandLine;
@@ -14,6 +19,9 @@ import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /**
  *
@@ -39,8 +47,18 @@ public class SQFLint {
 		options.addOption("h", "help", false, "");
 		options.addOption("iv", "ignore-variables", true, "ignored variables are treated as internal command");
 		options.addOption("s", "server", false, "run as server");
+		options.addOption("l", "lsp", false, "run as language server, using Language Server Protocol over standard input and output");
+		options.addOption("d", "daemon", true, "run as daemon serving server protocol to multiple clients on specified localhost port, 0 picks free port");
+		options.addOption("di", "daemon-idle", true, "seconds without clients after which daemon stops, 0 disables (defaults to 1800)");
+		options.addOption("nd", "no-daemon", false, "lint in this process even when daemon is running");
+		options.addOption("sw", "server-workers", true, "number of threads used to lint files in server mode (defaults to number of processors)");
+		options.addOption("sc", "server-cache", true, "number of lint results cached in server mode, 0 disables cache (defaults to 1000)");
+		options.addOption("sd", "server-debounce", true, "delay in milliseconds before file is linted in server mode, newer requests of the same file replace waiting one (defaults to 0)");
 		options.addOption("ip", "include-prefix", true, "adds include prefix override, format: prefix,path_to_use");
 		options.addOption("ncs", "no-context-separation", true, "disable context separation");
+		options.addOption("p", "parallelism", true, "number of files linted in parallel when linting multiple files (defaults to number of processors)");
+		options.addOption("cd", "cache-dir", true, "directory used to cache results between runs, unchanged files are not linted again");
+		options.addOption("cs", "cache-size", true, "maximum size of cache directory in MB (defaults to 100)");
 		
 		try {
 			cmd = cmdParser.parse(options, args);
@@ -49,15 +67,33 @@ public class SQFLint {
 			return;
 		}
 		
-		if (cmd.hasOption("h") || cmd.getArgs().length > 1) {
+		if (cmd.hasOption("h")) {
 			HelpFormatter formatter = new HelpFormatter();
-			formatter.printHelp("sqflint [OPTIONS] [FILE]", "Scans SQF file for errors and potential problems.", options, "Spaghetti");
+			formatter.printHelp(
+				"sqflint [OPTIONS] [FILE | DIRECTORY | GLOB]...",
+				"Scans SQF file for errors and potential problems. When multiple files, directory or glob pattern is specified, all matched files are linted in parallel and results are printed in order of paths.",
+				options,
+				"Spaghetti"
+			);
 			return;
 		}
 		
+		// Running daemon already has everything loaded
+		boolean forward = !cmd.hasOption("s") && !cmd.hasOption("l") && !cmd.hasOption("d")
+			&& !cmd.hasOption("nd") && !cmd.hasOption("cd") && cmd.getArgs().length > 0;
+		if (forward) {
+			JSONObject request = daemonRequest(cmd);
+			if (request != null) {
+				Integer code = new SQFLintClient(SQFLintDaemon.getDefaultPortFile()).forward(request);
+				if (code != null) {
+					System.exit(code);
+				}
+			}
+		}
+		
 		SQFPreprocessor preprocessor;
 		Linter linter;
-		String contents = null;
+		Reader contents = null;
 		String root = null;
 		String[] ignoredVariables = new String[0];
 
@@ -106,7 +142,44 @@ public class SQFLint {
 		
 		preprocessor = new SQFPreprocessor(linterOptions);
 		
-		if (!cmd.hasOption("s")) {
+		boolean cached = cmd.hasOption("cd") && cmd.getArgs().length > 0;
+		
+		boolean server = cmd.hasOption("s") || cmd.hasOption("l") || cmd.hasOption("d");
+		
+		if (!server && (cached || isWorkspace(cmd.getArgs()))) {
+			int parallelism = Runtime.getRuntime().availableProcessors();
+			if (cmd.hasOption("p")) {
+				try {
+					parallelism = Integer.parseInt(cmd.getOptionValue("p"));
+				} catch (NumberFormatException ex) {
+					System.out.println("Invalid parallelism : " + cmd.getOptionValue("p"));
+					return;
+				}
+			}
+			
+			long cacheSize = 100;
+			if (cmd.hasOption("cs")) {
+				try {
+					cacheSize = Long.parseLong(cmd.getOptionValue("cs"));
+				} catch (NumberFormatException ex) {
+					System.out.println("Invalid cache size : " + cmd.getOptionValue("cs"));
+					return;
+				}
+			}
+			
+			try {
+				DiskCache cache = null;
+				if (cached) {
+					cache = new DiskCache(Paths.get(cmd.getOptionValue("cd")), cacheSize * 1024 * 1024);
+				}
+				
+				SQFLintWorkspace workspace = new SQFLintWorkspace(linterOptions, parallelism, cache);
+				workspace.setGrouped(isWorkspace(cmd.getArgs()));
+				System.exit(workspace.lint(SQFLintWorkspace.collect(cmd.getArgs())));
+			} catch (IOException ex) {
+				Logger.getLogger(SQFLint.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		} else if (!server) {
 			if (cmd.getArgs().length == 0) {
 				try {
 					String filename = null;
@@ -114,7 +187,7 @@ public class SQFLint {
 						filename = Paths.get(root).resolve("file.sqf").toString();
 					}
 
-					contents = preprocessor.process(System.in, filename, false);
+					contents = preprocessor.reader(new InputStreamReader(System.in), filename, false);
 				} catch (Exception ex) {
 					Logger.getLogger(SQFLint.class.getName()).log(Level.SEVERE, null, ex);
 					return;
@@ -127,7 +200,7 @@ public class SQFLint {
 				}
 
 				try {
-					contents = preprocessor.process(new java.io.FileInputStream(filename), filename, true);
+					contents = preprocessor.reader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8), filename, true);
 				} catch (Exception ex) {
 					Logger.getLogger(SQFLint.class.getName()).log(Level.SEVERE, null, ex);
 					return;
@@ -135,14 +208,10 @@ public class SQFLint {
 			}
 			
 			linterOptions.setRootPath(root);
+			linterOptions.freeze();
 
 			if (contents != null) {
-				linter = new Linter(
-					new ByteArrayInputStream(
-						contents.getBytes(StandardCharsets.UTF_8)
-					),
-					linterOptions
-				);
+				linter = new Linter(contents, linterOptions);
 
 				linter.setPreprocessor(preprocessor);
 
@@ -153,9 +222,142 @@ public class SQFLint {
 				}
 			}
 		} else {
-			SQFLintServer server = new SQFLintServer(linterOptions);
-			server.start();
+			int workers = Runtime.getRuntime().availableProcessors();
+			if (cmd.hasOption("sw")) {
+				try {
+					workers = Integer.parseInt(cmd.getOptionValue("sw"));
+				} catch (NumberFormatException ex) {
+					System.out.println("Invalid number of server workers : " + cmd.getOptionValue("sw"));
+					return;
+				}
+			}
+			
+			int cacheSize = 1000;
+			if (cmd.hasOption("sc")) {
+				try {
+					cacheSize = Integer.parseInt(cmd.getOptionValue("sc"));
+				} catch (NumberFormatException ex) {
+					System.out.println("Invalid server cache size : " + cmd.getOptionValue("sc"));
+					return;
+				}
+			}
+			
+			long debounce = 0;
+			if (cmd.hasOption("sd")) {
+				try {
+					debounce = Long.parseLong(cmd.getOptionValue("sd"));
+				} catch (NumberFormatException ex) {
+					System.out.println("Invalid server debounce : " + cmd.getOptionValue("sd"));
+					return;
+				}
+			}
+			
+			if (cmd.hasOption("d")) {
+				int port;
+				long idle = 1800;
+				try {
+					port = Integer.parseInt(cmd.getOptionValue("d"));
+					if (cmd.hasOption("di")) {
+						idle = Long.parseLong(cmd.getOptionValue("di"));
+					}
+				} catch (NumberFormatException ex) {
+					System.out.println("Invalid daemon port or idle timeout");
+					return;
+				}
+				
+				SQFLintServer shared = new SQFLintServer(linterOptions, workers, cacheSize);
+				shared.setDebounce(debounce);
+				
+				try {
+					new SQFLintDaemon(shared, port, idle * 1000).start();
+				} catch (IOException ex) {
+					Logger.getLogger(SQFLint.class.getName()).log(Level.SEVERE, null, ex);
+				}
+				return;
+			}
+			
+			SQFLintServer instance;
+			if (cmd.hasOption("l")) {
+				instance = new SQFLintLanguageServer(linterOptions, workers, cacheSize);
+			} else {
+				instance = new SQFLintServer(linterOptions, workers, cacheSize);
+			}
+			
+			instance.setDebounce(debounce);
+			instance.start();
 		}
 	}
 	
+	/**
+	 * Builds daemon request equivalent to command line arguments.
+	 * Paths are made absolute, because daemon runs in different directory.
+	 * Include prefix paths are kept as they are, daemon resolves them
+	 * against directory of every linted file like the in-process linter does.
+	 * 
+	 * @param cmd
+	 * @return request, null if arguments can't be forwarded
+	 */
+	private static JSONObject daemonRequest(CommandLine cmd) {
+		try {
+			JSONObject options = new JSONObject();
+			options.put("checkPaths", cmd.hasOption("cp"));
+			
+			if (cmd.hasOption("r")) {
+				options.put("pathsRoot", Paths.get(cmd.getOptionValue("r")).toAbsolutePath().toString());
+			}
+			
+			// Prefixes are always sent, so daemon doesn't use its own ones
+			JSONObject prefixes = new JSONObject();
+			if (cmd.hasOption("ip")) {
+				for (String value : cmd.getOptionValues("ip")) {
+					String[] split = value.split(",");
+					if (split.length != 2) {
+						// Let the in-process linter report the error
+						return null;
+					}
+					
+					prefixes.put(split[0], split[1]);
+				}
+			}
+			options.put("includePrefixes", prefixes);
+			
+			JSONArray files = new JSONArray();
+			for (Path file : SQFLintWorkspace.collect(cmd.getArgs())) {
+				files.put(file.toString());
+			}
+			
+			JSONObject request = new JSONObject();
+			request.put("type", "cli");
+			request.put("cwd", Paths.get("").toAbsolutePath().toString());
+			request.put("files", files);
+			request.put("grouped", isWorkspace(cmd.getArgs()));
+			request.put("options", options);
+			request.put("json", cmd.hasOption("j"));
+			request.put("stopOnError", cmd.hasOption("e"));
+			request.put("skipWarnings", cmd.hasOption("nw"));
+			request.put("outputVariables", cmd.hasOption("v"));
+			request.put("exitCode", cmd.hasOption("oc"));
+			request.put("warningAsError", cmd.hasOption("we"));
+			
+			if (cmd.hasOption("iv")) {
+				request.put("ignoredVariables", new JSONArray(Arrays.asList(cmd.getOptionValues("iv"))));
+			}
+			
+			return request;
+		} catch (IOException | JSONException ex) {
+			return null;
+		}
+	}
+	
+	private static boolean isWorkspace(String[] args) {
+		if (args.length > 1) {
+			return true;
+		}
+		
+		return args.length == 1 && (
+			SQFLintWorkspace.isGlob(args[0]) ||
+			java.nio.file.Files.isDirectory(Paths.get(args[0]))
+		);
+	}
+	
 }
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Command line client forwarding lint to running daemon.
+ * Client doesn't load commands or any other linter data, so linting costs
+ * only JVM startup and single local connection. When there is no daemon,
+ * daemon doesn't prove it knows token from port file or it doesn't answer
+ * in time, caller is expected to lint the files itself.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class SQFLintClient {
+	private static final int CONNECT_TIMEOUT = 500;
+	private static final int READ_TIMEOUT = 60000;
+	
+	private final Path portFile;
+	
+	/**
+	 * @param portFile file containing port of running daemon
+	 */
+	public SQFLintClient(Path portFile) {
+		this.portFile = portFile;
+	}
+	
+	/**
+	 * Sends request to daemon and prints its output.
+	 * 
+	 * @param request "cli" message of server protocol
+	 * @return exit code of the lint, null when there is no trusted daemon or it failed
+	 */
+	public Integer forward(JSONObject request) {
+		String[] daemon = SQFLintDaemon.readPortFile(portFile);
+		if (daemon == null) {
+			return null;
+		}
+		
+		String token = daemon[1];
+		
+		try (Socket socket = new Socket()) {
+			socket.connect(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(daemon[0])),
+				CONNECT_TIMEOUT
+			);
+			socket.setSoTimeout(SQFLintDaemon.HANDSHAKE_TIMEOUT);
+			
+			Writer output = new OutputStreamWriter(socket.getOutputStream());
+			BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			
+			// Listening process has to prove it's the daemon which wrote the port file
+			String challenge = SQFLintDaemon.random();
+			output.write(challenge + "\n");
+			output.flush();
+			
+			String[] answer = String.valueOf(input.readLine()).split(" ");
+			if (answer.length != 2 || !SQFLintDaemon.isAnswer(SQFLintDaemon.answer(token, "daemon", challenge), answer[1])) {
+				return null;
+			}
+			
+			output.write(SQFLintDaemon.answer(token, "client", answer[0]) + "\n");
+			output.write(request.toString());
+			output.write("\n");
+			output.flush();
+			socket.shutdownOutput();
+			
+			// Stalled daemon can't block the command line forever
+			socket.setSoTimeout(READ_TIMEOUT);
+			String line = input.readLine();
+			if (line == null) {
+				return null;
+			}
+			
+			JSONObject response = new JSONObject(line);
+			if (!response.has("code")) {
+				return null;
+			}
+			
+			System.out.print(response.getString("output"));
+			System.err.print(response.getString("errorOutput"));
+			System.out.flush();
+			System.err.flush();
+			
+			return response.getInt("code");
+		} catch (IOException | NumberFormatException | JSONException ex) {
+			// Daemon isn't running anymore or doesn't answer, port file is stale
+			return null;
+		}
+	}
+}
@@ -0,0 +1,376 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint;
+
+import cz.zipek.sqflint.cache.Digest;
+import cz.zipek.sqflint.server.ResponseWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Daemon serving multiple clients over local TCP connections.
+ * Every connection speaks the same line based protocol as the server
+ * reading standard input, but all connections share workers, caches and
+ * statistics of single server. Daemon only listens on loopback interface
+ * and stops after it has no clients for specified time.
+ * Port of running daemon is written into port file, which is used by
+ * command line client to find it. Port file is readable only by its owner
+ * and also contains random token. Both sides of every connection prove
+ * they know the token before any message is exchanged, so other users
+ * can neither use the daemon nor pretend to be one.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class SQFLintDaemon {
+	private static final long IDLE_CHECK_INTERVAL = 1000;
+	static final int HANDSHAKE_TIMEOUT = 1000;
+	private static final int MAX_HANDSHAKE_LINE = 256;
+	
+	private static final SecureRandom RANDOM = new SecureRandom();
+	
+	private final SQFLintServer server;
+	private final int port;
+	private final long idleTimeout;
+	
+	private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+	private volatile long lastActivity = System.currentTimeMillis();
+	private volatile boolean running = true;
+	private ServerSocket socket;
+	private Path portFile = getDefaultPortFile();
+	private final String token = random();
+	
+	/**
+	 * @param server server providing shared workers and caches
+	 * @param port port to listen on, 0 to use any free port
+	 * @param idleTimeout time in milliseconds without clients after which daemon stops, 0 to never stop
+	 */
+	public SQFLintDaemon(SQFLintServer server, int port, long idleTimeout) {
+		this.server = server;
+		this.port = port;
+		this.idleTimeout = idleTimeout;
+	}
+	
+	/**
+	 * Accepts clients until daemon is stopped or idle for too long.
+	 * @throws IOException when socket can't be opened
+	 */
+	public void start() throws IOException {
+		synchronized (this) {
+			socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		}
+		
+		if (idleTimeout > 0) {
+			socket.setSoTimeout((int)Math.min(idleTimeout, IDLE_CHECK_INTERVAL));
+		}
+		
+		Logger.getLogger(SQFLintDaemon.class.getName()).log(Level.INFO, "Listening on port {0}", String.valueOf(getPort()));
+		
+		String portValue = getPort() + "\n" + token;
+		if (portFile != null) {
+			writePortFile(portValue);
+		}
+		
+		int counter = 0;
+		try {
+			while (running) {
+				Socket client;
+				try {
+					client = socket.accept();
+				} catch (SocketTimeoutException ex) {
+					if (isIdle()) {
+						break;
+					}
+					continue;
+				} catch (SocketException ex) {
+					// Socket was closed by stop
+					if (!running) {
+						break;
+					}
+					throw ex;
+				}
+				
+				clients.add(client);
+				lastActivity = System.currentTimeMillis();
+				
+				Thread thread = new Thread(() -> serve(client), "sqflint-client-" + (++counter));
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} finally {
+			stop();
+			server.shutdown();
+			
+			// Port file could've been replaced by another daemon
+			if (portFile != null && portValue.equals(readFile(portFile))) {
+				Files.deleteIfExists(portFile);
+			}
+		}
+	}
+	
+	/**
+	 * Stops accepting clients and closes all connections.
+	 */
+	public void stop() {
+		running = false;
+		
+		try {
+			synchronized (this) {
+				if (socket != null) {
+					socket.close();
+				}
+			}
+			
+			for (Socket client : clients) {
+				client.close();
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(SQFLintDaemon.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+	
+	/**
+	 * @return port daemon listens on, -1 if it isn't listening yet
+	 */
+	public synchronized int getPort() {
+		return socket != null ? socket.getLocalPort() : -1;
+	}
+	
+	/**
+	 * @param portFile file receiving port of running daemon, null to not write any
+	 */
+	public void setPortFile(Path portFile) {
+		this.portFile = portFile;
+	}
+	
+	/**
+	 * @return port file used when none is specified, in home directory of the user
+	 */
+	public static Path getDefaultPortFile() {
+		return Paths.get(System.getProperty("user.home"), ".sqflint", "daemon.port");
+	}
+	
+	/**
+	 * Writes port file atomically. File is first written under random name,
+	 * so existing file or link with the final name is never opened.
+	 * 
+	 * @param contents
+	 * @throws IOException 
+	 */
+	private void writePortFile(String contents) throws IOException {
+		Path directory = portFile.toAbsolutePath().getParent();
+		boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+		
+		Path temp;
+		if (posix) {
+			Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			// Fails when the directory belongs to someone else
+			Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+			temp = Files.createTempFile(directory, "daemon", ".tmp", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createDirectories(directory);
+			temp = Files.createTempFile(directory, "daemon", ".tmp");
+		}
+		
+		try {
+			Files.write(temp, contents.getBytes(StandardCharsets.US_ASCII));
+			Files.move(temp, portFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+	
+	/**
+	 * @param portFile
+	 * @return port and token of running daemon, null if port file can't be read
+	 */
+	static String[] readPortFile(Path portFile) {
+		String contents = readFile(portFile);
+		if (contents == null) {
+			return null;
+		}
+		
+		String[] values = contents.split("\n");
+		return values.length == 2 ? values : null;
+	}
+	
+	private static String readFile(Path file) {
+		try {
+			return new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @return random hex encoded value usable as token or challenge
+	 */
+	static String random() {
+		byte[] value = new byte[32];
+		RANDOM.nextBytes(value);
+		return Digest.toHex(value);
+	}
+	
+	/**
+	 * Computes answer to challenge, which can only be computed with the token.
+	 * Side is part of the answer, so answer of one side can't be replayed by the other.
+	 * 
+	 * @param token token from port file
+	 * @param side "daemon" or "client"
+	 * @param challenge random value sent by the other side
+	 * @return hex encoded answer
+	 */
+	static String answer(String token, String side, String challenge) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(token.getBytes(StandardCharsets.US_ASCII), "HmacSHA256"));
+			return Digest.toHex(mac.doFinal((side + ":" + challenge).getBytes(StandardCharsets.US_ASCII)));
+		} catch (GeneralSecurityException ex) {
+			// Every java platform is required to support HmacSHA256
+			throw new IllegalStateException(ex);
+		}
+	}
+	
+	/**
+	 * @param expected
+	 * @param actual
+	 * @return if answers are equal, compared in constant time
+	 */
+	static boolean isAnswer(String expected, String actual) {
+		return actual != null && MessageDigest.isEqual(
+			expected.getBytes(StandardCharsets.US_ASCII),
+			actual.getBytes(StandardCharsets.US_ASCII)
+		);
+	}
+	
+	/**
+	 * Checks that client knows the token. Client sends its challenge, daemon
+	 * answers it and sends its own challenge, client answers that.
+	 * 
+	 * @param input
+	 * @param output
+	 * @return if client proved it knows the token
+	 */
+	private boolean authenticate(InputStream input, OutputStream output) {
+		try {
+			String clientChallenge = readLine(input);
+			if (clientChallenge == null) {
+				return false;
+			}
+			
+			String challenge = random();
+			output.write((challenge + " " + answer(token, "daemon", clientChallenge) + "\n").getBytes(StandardCharsets.US_ASCII));
+			output.flush();
+			
+			return isAnswer(answer(token, "client", challenge), readLine(input));
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Reads handshake line byte by byte, so nothing after it is consumed.
+	 * 
+	 * @param input
+	 * @return line without newline, null at end of input or when it's too long
+	 * @throws IOException 
+	 */
+	private static String readLine(InputStream input) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		
+		while ((c = input.read()) >= 0 && c != '\n') {
+			if (line.size() >= MAX_HANDSHAKE_LINE) {
+				return null;
+			}
+			line.write(c);
+		}
+		
+		return c < 0 ? null : new String(line.toByteArray(), StandardCharsets.US_ASCII).trim();
+	}
+	
+	private boolean isIdle() {
+		return idleTimeout > 0
+			&& clients.isEmpty()
+			&& System.currentTimeMillis() - lastActivity >= idleTimeout;
+	}
+	
+	/**
+	 * Serves single client connection until it's closed.
+	 * @param client 
+	 */
+	private void serve(Socket client) {
+		try {
+			client.setSoTimeout(HANDSHAKE_TIMEOUT);
+			if (!authenticate(client.getInputStream(), client.getOutputStream())) {
+				Logger.getLogger(SQFLintDaemon.class.getName()).log(Level.WARNING, "Rejected client without valid token");
+				return;
+			}
+			client.setSoTimeout(0);
+			
+			ResponseWriter writer = new ResponseWriter(new PrintStream(client.getOutputStream()));
+			SQFLintServer session = new SQFLintServer(server, writer) {
+				@Override
+				protected void shutdownRequested() {
+					stop();
+				}
+			};
+			
+			session.run(client.getInputStream());
+		} catch (IOException ex) {
+			Logger.getLogger(SQFLintDaemon.class.getName()).log(Level.SEVERE, null, ex);
+		} finally {
+			try {
+				client.close();
+			} catch (IOException ex) {
+				Logger.getLogger(SQFLintDaemon.class.getName()).log(Level.SEVERE, null, ex);
+			}
+			
+			clients.remove(client);
+			lastActivity = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,434 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint;
+
+import cz.zipek.sqflint.linter.Options;
+import cz.zipek.sqflint.server.MessageReader;
+import cz.zipek.sqflint.server.MessageWriter;
+import cz.zipek.sqflint.server.PendingLint;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Language Server Protocol front end of the server.
+ * Speaks JSON-RPC over standard input and output, opened and changed
+ * documents are linted by the server workers and results are pushed back
+ * as diagnostics. Every lint is tagged with document version, so results
+ * of versions which were already replaced are never published.
+ * Options can be passed as initializationOptions, using same format as
+ * options of the line based server.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class SQFLintLanguageServer extends SQFLintServer {
+	private static final int SYNC_FULL = 1;
+	
+	private static final int SEVERITY_ERROR = 1;
+	private static final int SEVERITY_WARNING = 2;
+	
+	private static final int INVALID_PARAMS = -32602;
+	private static final int METHOD_NOT_FOUND = -32601;
+	
+	// Open documents by their URI
+	private final Map<String, Document> documents = new ConcurrentHashMap<>();
+	private Options documentOptions;
+	
+	/**
+	 * @param options base options used for every document
+	 * @param workers number of threads used to lint documents
+	 * @param cacheSize number of cached results, 0 disables cache
+	 */
+	public SQFLintLanguageServer(Options options, int workers, int cacheSize) {
+		this(options, workers, cacheSize, System.out);
+	}
+	
+	/**
+	 * @param options base options used for every document
+	 * @param workers number of threads used to lint documents
+	 * @param cacheSize number of cached results, 0 disables cache
+	 * @param output stream receiving the messages
+	 */
+	SQFLintLanguageServer(Options options, int workers, int cacheSize, PrintStream output) {
+		super(options, workers, cacheSize, new MessageWriter(output));
+	}
+	
+	@Override
+	protected void serve(InputStream input) throws IOException {
+		MessageReader reader = new MessageReader(input);
+		
+		try {
+			documentOptions = messageOptions(new JSONObject());
+		} catch (JSONException ex) {
+			Logger.getLogger(SQFLintLanguageServer.class.getName()).log(Level.SEVERE, null, ex);
+			return;
+		}
+		
+		while (true) {
+			String message = reader.read();
+			if (message == null) {
+				break;
+			}
+			
+			try {
+				if (!processRequest(decode(message))) {
+					break;
+				}
+			} catch (JSONException ex) {
+				Logger.getLogger(SQFLintLanguageServer.class.getName()).log(Level.SEVERE, null, ex);
+			} catch (RuntimeException | StackOverflowError ex) {
+				// Single bad message can't stop the server
+				Logger.getLogger(SQFLintLanguageServer.class.getName()).log(Level.SEVERE, "Failed to process message", ex);
+			}
+		}
+	}
+	
+	private boolean processRequest(JSONObject message) throws JSONException {
+		String method = message.optString("method");
+		Object id = message.has("id") ? message.get("id") : null;
+		JSONObject params = message.optJSONObject("params");
+		JSONObject textDocument = params != null ? params.optJSONObject("textDocument") : null;
+		
+		// Document messages without document can't be processed
+		if (method.startsWith("textDocument/") && (textDocument == null || !textDocument.has("uri"))) {
+			if (id != null) {
+				error(id, INVALID_PARAMS, "Missing textDocument of " + method);
+			}
+			return true;
+		}
+		
+		switch (method) {
+			case "initialize":
+				initialize(id, params);
+				break;
+			case "initialized":
+				break;
+			case "shutdown":
+				respond(id, JSONObject.NULL);
+				break;
+			case "exit":
+				return false;
+			case "textDocument/didOpen":
+				didOpen(textDocument);
+				break;
+			case "textDocument/didChange":
+				didChange(params);
+				break;
+			case "textDocument/didSave":
+				didSave(params);
+				break;
+			case "textDocument/didClose":
+				didClose(textDocument);
+				break;
+			default:
+				// Notifications can be ignored, requests have to be answered
+				if (id != null) {
+					error(id, METHOD_NOT_FOUND, "Unsupported method " + method);
+				}
+		}
+		
+		return true;
+	}
+	
+	private void initialize(Object id, JSONObject params) throws JSONException {
+		if (params != null && params.optJSONObject("initializationOptions") != null) {
+			documentOptions = messageOptions(new JSONObject()
+				.put("options", params.getJSONObject("initializationOptions"))
+			);
+		}
+		
+		respond(id, new JSONObject()
+			.put("capabilities", new JSONObject()
+				.put("textDocumentSync", new JSONObject()
+					.put("openClose", true)
+					.put("change", SYNC_FULL)
+					.put("save", new JSONObject().put("includeText", true))
+				)
+			)
+			.put("serverInfo", new JSONObject().put("name", "sqflint"))
+		);
+	}
+	
+	private void didOpen(JSONObject textDocument) throws JSONException {
+		String uri = textDocument.getString("uri");
+		documents.put(uri, new Document(
+			uri,
+			textDocument.optInt("version"),
+			textDocument.optString("text")
+		));
+		
+		lint(uri);
+	}
+	
+	private void didChange(JSONObject params) throws JSONException {
+		JSONObject textDocument = params.getJSONObject("textDocument");
+		JSONArray changes = params.optJSONArray("contentChanges");
+		
+		// Full sync is used, so last change contains whole document
+		JSONObject change = changes != null ? changes.optJSONObject(changes.length() - 1) : null;
+		if (change == null) {
+			return;
+		}
+		
+		String uri = textDocument.getString("uri");
+		documents.put(uri, new Document(
+			uri,
+			textDocument.optInt("version"),
+			change.optString("text")
+		));
+		
+		lint(uri);
+	}
+	
+	private void didSave(JSONObject params) throws JSONException {
+		String uri = params.getJSONObject("textDocument").getString("uri");
+		
+		Document document = documents.get(uri);
+		if (document != null && params.has("text")) {
+			document = new Document(uri, document.version, params.getString("text"));
+			documents.put(uri, document);
+		}
+		
+		Path path = toPath(uri);
+		if (path == null) {
+			return;
+		}
+		
+		// Saved file can be header included by other open documents
+		Set<Path> dependents = invalidate(path);
+		for (Document open : documents.values()) {
+			Path openPath = toPath(open.uri);
+			if (openPath != null && dependents.contains(openPath.toAbsolutePath().normalize())) {
+				lint(open.uri);
+			}
+		}
+		
+		if (document != null) {
+			lint(uri);
+		}
+	}
+	
+	private void didClose(JSONObject textDocument) throws JSONException {
+		String uri = textDocument.getString("uri");
+		documents.remove(uri);
+		
+		// Clear diagnostics of closed document
+		writer.write(notification("textDocument/publishDiagnostics", new JSONObject()
+			.put("uri", uri)
+			.put("diagnostics", new JSONArray())
+		));
+	}
+	
+	/**
+	 * Queues lint of current version of open document.
+	 * @param uri 
+	 */
+	private void lint(String uri) {
+		Document document = documents.get(uri);
+		Path path = toPath(uri);
+		
+		if (document != null && path != null) {
+			submit(path.toString(), document.text, new Version(uri, document.version), documentOptions);
+		}
+	}
+	
+	@Override
+	protected void publish(Object id, String filePath, JSONArray messages) throws JSONException {
+		if (!(id instanceof Version)) {
+			super.publish(id, filePath, messages);
+			return;
+		}
+		
+		// Skip results of closed documents and outdated versions
+		Version version = (Version)id;
+		Document document = documents.get(version.uri);
+		if (document == null || document.version != version.version) {
+			return;
+		}
+		
+		JSONArray diagnostics = new JSONArray();
+		for (int i = 0; i < messages.length(); i++) {
+			JSONObject message = messages.optJSONObject(i);
+			if (message == null) {
+				continue;
+			}
+			
+			String type = message.optString("type");
+			if ("error".equals(type) || "warning".equals(type)) {
+				diagnostics.put(diagnostic(message, filePath));
+			}
+		}
+		
+		writer.write(notification("textDocument/publishDiagnostics", new JSONObject()
+			.put("uri", version.uri)
+			.put("version", version.version)
+			.put("diagnostics", diagnostics)
+		));
+	}
+	
+	@Override
+	protected void superseded(PendingLint request) {
+		// Newer version of the document will publish its own diagnostics
+		if (!(request.getId() instanceof Version)) {
+			super.superseded(request);
+		}
+	}
+	
+	/**
+	 * Converts message built by JSONOutput to LSP diagnostic.
+	 * JSONOutput uses 1-based lines and columns with inclusive end, LSP uses
+	 * 0-based positions with exclusive end.
+	 * 
+	 * @param message
+	 * @param filePath path of the published document
+	 * @return diagnostic
+	 * @throws JSONException 
+	 */
+	private JSONObject diagnostic(JSONObject message, String filePath) throws JSONException {
+		String text = message.getString("message");
+		JSONObject range;
+		
+		if (message.has("filename") && !isSameFile(message.getString("filename"), filePath)) {
+			// Range points to included file, so only its name is reported
+			text += " (" + message.getString("filename") + ")";
+			range = range(0, 0, 0, 0);
+		} else {
+			JSONArray line = message.getJSONArray("line");
+			JSONArray column = message.getJSONArray("column");
+			range = range(
+				line.getInt(0) - 1, column.getInt(0) - 1,
+				line.getInt(1) - 1, column.getInt(1)
+			);
+		}
+		
+		return new JSONObject()
+			.put("range", range)
+			.put("severity", "error".equals(message.getString("type")) ? SEVERITY_ERROR : SEVERITY_WARNING)
+			.put("source", "sqflint")
+			.put("message", text);
+	}
+	
+	private static boolean isSameFile(String a, String b) {
+		try {
+			return Paths.get(a).toAbsolutePath().normalize().equals(Paths.get(b).toAbsolutePath().normalize());
+		} catch (InvalidPathException ex) {
+			return false;
+		}
+	}
+	
+	private JSONObject range(int startLine, int startCharacter, int endLine, int endCharacter) throws JSONException {
+		return new JSONObject()
+			.put("start", new JSONObject()
+				.put("line", Math.max(0, startLine))
+				.put("character", Math.max(0, startCharacter))
+			)
+			.put("end", new JSONObject()
+				.put("line", Math.max(0, endLine))
+				.put("character", Math.max(0, endCharacter))
+			);
+	}
+	
+	private void respond(Object id, Object result) throws JSONException {
+		writer.write(new JSONObject()
+			.put("jsonrpc", "2.0")
+			.put("id", id == null ? JSONObject.NULL : id)
+			.put("result", result)
+			.toString()
+		);
+	}
+	
+	private void error(Object id, int code, String message) throws JSONException {
+		writer.write(new JSONObject()
+			.put("jsonrpc", "2.0")
+			.put("id", id)
+			.put("error", new JSONObject()
+				.put("code", code)
+				.put("message", message)
+			)
+			.toString()
+		);
+	}
+	
+	private String notification(String method, JSONObject params) throws JSONException {
+		return new JSONObject()
+			.put("jsonrpc", "2.0")
+			.put("method", method)
+			.put("params", params)
+			.toString();
+	}
+	
+	/**
+	 * @param uri document URI
+	 * @return path of the document, null if it isn't local file
+	 */
+	private Path toPath(String uri) {
+		try {
+			return Paths.get(new URI(uri));
+		} catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException ex) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Single version of open document.
+	 */
+	private static class Document {
+		private final String uri;
+		private final int version;
+		private final String text;
+		
+		public Document(String uri, int version, String text) {
+			this.uri = uri;
+			this.version = version;
+			this.text = text;
+		}
+	}
+	
+	/**
+	 * Request id identifying document version being linted.
+	 */
+	private static class Version {
+		private final String uri;
+		private final int version;
+		
+		public Version(String uri, int version) {
+			this.uri = uri;
+			this.version = version;
+		}
+	}
+}
@@ -23,91 +23,724 @@
  */
 package cz.zipek.sqflint;
 
+import cz.zipek.sqflint.cache.LintResultCache;
+import cz.zipek.sqflint.linter.LintCancelledException;
 import cz.zipek.sqflint.linter.Linter;
 import cz.zipek.sqflint.linter.Options;
+import cz.zipek.sqflint.output.JSONOutput;
 import cz.zipek.sqflint.output.ServerOutput;
+import cz.zipek.sqflint.output.TextOutput;
+import cz.zipek.sqflint.preprocessor.SQFInclude;
+import cz.zipek.sqflint.preprocessor.SQFIncludeCache;
 import cz.zipek.sqflint.preprocessor.SQFPreprocessor;
+import cz.zipek.sqflint.server.IncludeGraph;
+import cz.zipek.sqflint.server.PendingLint;
+import cz.zipek.sqflint.server.ResponseWriter;
+import cz.zipek.sqflint.server.ServerStats;
+import cz.zipek.sqflint.server.ServerStats.Phase;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.io.StringReader;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONStringer;
 
 /**
  * Language server allowing to feed single process with multiple files.
+ * Messages are linted in parallel by pool of workers, responses are written
+ * as soon as they're finished, so they can come in different order than
+ * requests. Client can pair them using optional "id" field, which is copied
+ * from request to response.
+ * Results are cached, so repeated requests with same contents are answered
+ * without linting the file again. Server also remembers which files include
+ * which headers, so change of header only invalidates files depending on it.
+ * When new request for a file arrives before previous request of the same
+ * file is finished, the previous one is superseded: it's dropped from queue
+ * or its linter is cancelled. Superseded requests with id are answered with
+ * "superseded" flag, requests without id are dropped silently.
+ * Counters and latency of linting phases can be requested by "stats" message.
+ * Multiple sessions (for example clients of the daemon) can share workers,
+ * caches and statistics of single server, each session has its own writer
+ * and its own pending requests.
+ * 
  * @author Jan Zípek <jan at zipek.cz>
  */
 public class SQFLintServer {
+	// Shared between sessions
 	private final Options options;
+	private final ThreadPoolExecutor workers;
+	private final LintResultCache cache;
+	private final IncludeGraph includeGraph;
+	protected final ServerStats stats;
+	private final ScheduledExecutorService scheduler;
+	private long debounce = 0;
+	
+	// Owner of shared resources shuts them down when finished
+	private final boolean owner;
+	
+	protected final ResponseWriter writer;
+	
+	// Latest request of every file that isn't finished yet
+	private final Map<Path, PendingLint> pending = new ConcurrentHashMap<>();
+	
+	// Number of tasks which can still write response
+	private final Object outstandingLock = new Object();
+	private int outstanding = 0;
 	
 	public SQFLintServer(Options options) {
-		this.options = options;
+		this(options, Runtime.getRuntime().availableProcessors(), 1000);
+	}
+	
+	/**
+	 * @param options base options used for every message
+	 * @param workers number of threads used to lint messages
+	 * @param cacheSize number of cached results, 0 disables cache
+	 */
+	public SQFLintServer(Options options, int workers, int cacheSize) {
+		this(options, workers, cacheSize, new ResponseWriter(System.out));
+	}
+	
+	/**
+	 * @param options base options used for every message
+	 * @param workers number of threads used to lint messages
+	 * @param cacheSize number of cached results, 0 disables cache
+	 * @param writer writer used to send responses
+	 */
+	protected SQFLintServer(Options options, int workers, int cacheSize, ResponseWriter writer) {
+		this.options = options.derive().freeze();
+		this.workers = new ThreadPoolExecutor(
+			Math.max(1, workers), Math.max(1, workers),
+			0L, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<>()
+		);
+		this.writer = writer;
+		this.cache = new LintResultCache(cacheSize);
+		this.includeGraph = new IncludeGraph();
+		this.stats = new ServerStats();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor();
+		this.owner = true;
+	}
+	
+	/**
+	 * Creates session sharing workers, caches and statistics with server.
+	 * 
+	 * @param server server owning shared resources
+	 * @param writer writer used to send responses of this session
+	 */
+	protected SQFLintServer(SQFLintServer server, ResponseWriter writer) {
+		this.options = server.options;
+		this.workers = server.workers;
+		this.writer = writer;
+		this.cache = server.cache;
+		this.includeGraph = server.includeGraph;
+		this.stats = server.stats;
+		this.scheduler = server.scheduler;
+		this.debounce = server.debounce;
+		this.owner = false;
+	}
+	
+	/**
+	 * Sets delay before file request is linted. Requests of the same file
+	 * coming in this window supersede the waiting one without linting it.
+	 * 
+	 * @param debounce delay in milliseconds, 0 to lint immediately
+	 */
+	public void setDebounce(long debounce) {
+		this.debounce = Math.max(0, debounce);
 	}
 	
 	public void start() {
 		try {
-			BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+			run(System.in);
+		} finally {
+			shutdown();
+		}
+	}
+	
+	/**
+	 * Serves messages from input until exit message or end of input.
+	 * Returns after responses of all received messages are written.
+	 * 
+	 * @param input 
+	 */
+	protected void run(InputStream input) {
+		Thread writerThread = new Thread(writer, "sqflint-writer");
+		writerThread.start();
+		
+		try {
+			serve(input);
+		} catch (IOException ex) {
+			Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, ex);
+		} finally {
+			finish(writerThread);
+		}
+	}
+	
+	/**
+	 * Reads messages from input until exit message or end of input.
+	 * @param input
+	 * @throws IOException 
+	 */
+	protected void serve(InputStream input) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(input));
 
-			while (true) {
-				try {
-					if (!processMessage(new JSONObject(br.readLine()))) {
-						break;
-					}
-				} catch (JSONException ex) {
-					Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, ex);
+		while (true) {
+			String line = br.readLine();
+			if (line == null) {
+				break;
+			}
+
+			try {
+				if (!processMessage(decode(line))) {
+					break;
 				}
+			} catch (JSONException ex) {
+				Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, ex);
+			} catch (RuntimeException | StackOverflowError ex) {
+				// Single bad message can't stop the server
+				Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, "Failed to process message", ex);
 			}
-		}  catch (IOException ex) {
+		}
+	}
+	
+	/**
+	 * Parses received message, measuring the time it took.
+	 * 
+	 * @param message raw message
+	 * @return parsed message
+	 * @throws JSONException 
+	 */
+	protected JSONObject decode(String message) throws JSONException {
+		long start = System.nanoTime();
+		JSONObject result = new JSONObject(message);
+		stats.record(Phase.DECODE, System.nanoTime() - start);
+		
+		return result;
+	}
+	
+	/**
+	 * Waits for all lints of this session to finish and then stops the writer.
+	 * @param writerThread 
+	 */
+	private void finish(Thread writerThread) {
+		try {
+			synchronized (outstandingLock) {
+				while (outstanding > 0) {
+					outstandingLock.wait();
+				}
+			}
+			
+			writer.close();
+			writerThread.join();
+		} catch (InterruptedException ex) {
 			Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, ex);
 		}
 	}
 	
-	private boolean processMessage(JSONObject message) {
-		String filePath = "";
+	/**
+	 * Stops shared workers. Sessions leave them running.
+	 */
+	protected void shutdown() {
+		if (!owner) {
+			return;
+		}
+		
+		scheduler.shutdown();
+		workers.shutdown();
+		
+		try {
+			scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+	
+	/**
+	 * Marks start of task which will write response.
+	 */
+	private void begin() {
+		synchronized (outstandingLock) {
+			outstanding++;
+		}
+	}
+	
+	/**
+	 * Marks end of task started by begin.
+	 */
+	private void end() {
+		synchronized (outstandingLock) {
+			if (--outstanding == 0) {
+				outstandingLock.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Called when client asks whole server to shut down.
+	 * Server reading standard input simply stops, daemon stops all sessions.
+	 */
+	protected void shutdownRequested() {
+	}
+	
+	private boolean processMessage(JSONObject message) throws JSONException {
+		if (message.has("type")) {
+			switch (message.getString("type")) {
+				case "exit":
+					return false;
+				case "shutdown":
+					shutdownRequested();
+					return false;
+				case "cache":
+					writer.write(cacheStats(message));
+					return true;
+				case "stats":
+					writer.write(serverStats(message));
+					return true;
+				case "changed":
+					fileChanged(message);
+					return true;
+				case "batch":
+					lintBatch(message);
+					return true;
+				case "cli":
+					lintCli(message);
+					return true;
+			}
+		}
+		
+		submit(
+			message.getString("file"),
+			message.has("contents") ? message.getString("contents") : null,
+			message.has("id") ? message.get("id") : null,
+			messageOptions(message)
+		);
+		
+		return true;
+	}
+	
+	/**
+	 * Queues lint of single file, superseding previous request of the file.
+	 * 
+	 * @param file linted file
+	 * @param contents file contents, null to load them from disk
+	 * @param id request id, null if there isn't any
+	 * @param messageOptions options of the request
+	 */
+	protected void submit(String file, String contents, Object id, Options messageOptions) {
+		PendingLint request = new PendingLint(file, id);
+		stats.received();
+		begin();
+		
+		PendingLint previous = pending.put(pendingKey(file), request);
+		if (previous != null && previous.cancel()) {
+			// Previous request never started, so nobody else will answer it
+			stats.superseded();
+			superseded(previous);
+			end();
+		}
 		
+		Runnable task = () -> {
+			if (!request.start()) {
+				return;
+			}
+			
+			try {
+				lintFile(file, contents, id, messageOptions, request);
+			} finally {
+				pending.remove(pendingKey(file), request);
+				end();
+			}
+		};
+		
+		if (debounce > 0) {
+			request.setFuture(scheduler.schedule(
+				() -> workers.submit(task),
+				debounce, TimeUnit.MILLISECONDS
+			));
+		} else {
+			request.setFuture(workers.submit(task));
+		}
+	}
+	
+	private Path pendingKey(String file) {
+		return Paths.get(file).toAbsolutePath().normalize();
+	}
+	
+	/**
+	 * Notifies client that request was superseded by newer one.
+	 * Requests without id can't be paired, so they're not answered at all.
+	 * 
+	 * @param request 
+	 */
+	protected void superseded(PendingLint request) {
+		if (request.getId() == null) {
+			return;
+		}
+		
+		try {
+			writer.write(new JSONStringer()
+				.object()
+				.key("id").value(request.getId())
+				.key("file").value(request.getFile())
+				.key("superseded").value(true)
+				.endObject()
+				.toString()
+			);
+		} catch (JSONException ex) {
+			Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+	
+	private void lintMessage(JSONObject message) {
 		try {
-			if (message.has("type") && "exit".equals(message.getString("type"))) {
-				return false;
+			Object id = null;
+			if (message.has("id")) {
+				id = message.get("id");
 			}
 			
-			filePath = message.getString("file");
-			Linter linter;
-
+			String contents = null;
 			if (message.has("contents")) {
-				linter = parse(message.getString("contents"), filePath);
+				contents = message.getString("contents");
+			}
+			
+			lintFile(message.getString("file"), contents, id, messageOptions(message), null);
+		} catch (JSONException ex) {
+			Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+	
+	/**
+	 * Lints list of files sharing single options object.
+	 * Files are linted in parallel, response for every file is sent as soon
+	 * as it's finished and summary is sent after all files are done.
+	 * Files can be specified either as path or as object with "file" and
+	 * optional "contents" fields.
+	 * 
+	 * @param message
+	 * @throws JSONException 
+	 */
+	private void lintBatch(JSONObject message) throws JSONException {
+		long start = System.nanoTime();
+		
+		Object id = null;
+		if (message.has("id")) {
+			id = message.get("id");
+		}
+		
+		JSONArray files = message.getJSONArray("files");
+		Options batchOptions = messageOptions(message);
+		
+		List<CompletableFuture<FileResult>> results = new ArrayList<>();
+		for (int i = 0; i < files.length(); i++) {
+			String filePath;
+			String contents = null;
+			
+			Object file = files.get(i);
+			if (file instanceof JSONObject) {
+				filePath = ((JSONObject)file).getString("file");
+				if (((JSONObject)file).has("contents")) {
+					contents = ((JSONObject)file).getString("contents");
+				}
 			} else {
-				linter = parseFile(filePath);
+				filePath = file.toString();
 			}
 			
-			if (message.has("options")) {
-				this.applyOptions(message.getJSONObject("options"));
+			String batchContents = contents;
+			Object batchId = id;
+			results.add(CompletableFuture.supplyAsync(
+				() -> lintFile(filePath, batchContents, batchId, batchOptions, null),
+				workers
+			));
+		}
+		
+		Object summaryId = id;
+		begin();
+		CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).whenComplete((done, error) -> {
+			int errors = 0, warnings = 0, cached = 0, failed = 0;
+			for (CompletableFuture<FileResult> future : results) {
+				FileResult result = future.isCompletedExceptionally() ? null : future.join();
+				if (result == null) {
+					failed++;
+				} else {
+					errors += result.errors;
+					warnings += result.warnings;
+					cached += result.cached ? 1 : 0;
+				}
 			}
 			
-			linter.start();			
+			try {
+				JSONStringer summary = new JSONStringer();
+				summary.object();
+				
+				if (summaryId != null) {
+					summary.key("id").value(summaryId);
+				}
+				
+				writer.write(summary
+					.key("type").value("summary")
+					.key("files").value(results.size())
+					.key("errors").value(errors)
+					.key("warnings").value(warnings)
+					.key("cached").value(cached)
+					.key("failed").value(failed)
+					.key("time").value((System.nanoTime() - start) / 1000000)
+					.endObject()
+					.toString()
+				);
+			} catch (JSONException ex) {
+				Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, ex);
+			} finally {
+				end();
+			}
+		});
+	}
+	
+	/**
+	 * Lints files the same way as command line does and sends back
+	 * captured output and exit code. Used by command line client forwarding
+	 * its arguments to daemon. Relative paths are resolved against "cwd".
+	 * 
+	 * @param message
+	 * @throws JSONException 
+	 */
+	private void lintCli(JSONObject message) throws JSONException {
+		Object id = message.has("id") ? message.get("id") : null;
+		
+		// Include prefixes of the daemon itself are dropped, client always sends its own
+		Options cliOptions = options.derive();
+		cliOptions.setRootPath(null);
+		cliOptions.clearSkippedVariables();
+		cliOptions.clearIncludePaths();
+		
+		if (message.has("options")) {
+			applyOptions(cliOptions, message.getJSONObject("options"));
+		}
+		
+		if (message.has("ignoredVariables")) {
+			JSONArray vars = message.getJSONArray("ignoredVariables");
+			String[] values = new String[vars.length()];
+			for (int i = 0; i < vars.length(); i++) {
+				values[i] = vars.getString(i);
+			}
+			cliOptions.addIgnoredVariables(values);
+		}
+		
+		if (message.optBoolean("json", false)) {
+			cliOptions.setOutputFormatter(new JSONOutput());
+		} else {
+			cliOptions.setOutputFormatter(new TextOutput());
+		}
+		
+		cliOptions.setStopOnError(message.optBoolean("stopOnError", false));
+		cliOptions.setSkipWarnings(message.optBoolean("skipWarnings", false));
+		cliOptions.setOutputVariables(message.optBoolean("outputVariables", false));
+		cliOptions.setExitCodeEnabled(message.optBoolean("exitCode", false));
+		cliOptions.setWarningAsError(message.optBoolean("warningAsError", false));
+		cliOptions.freeze();
+		
+		SQFLintWorkspace workspace = new SQFLintWorkspace(cliOptions, 1);
+		workspace.setGrouped(message.optBoolean("grouped", false));
+		if (message.has("cwd")) {
+			workspace.setDirectory(Paths.get(message.getString("cwd")));
+		}
+		
+		List<Path> files = new ArrayList<>();
+		JSONArray list = message.getJSONArray("files");
+		for (int i = 0; i < list.length(); i++) {
+			files.add(Paths.get(list.getString(i)));
+		}
+		
+		begin();
+		workspace.lint(files, workers).whenComplete((result, error) -> {
+			try {
+				JSONStringer response = new JSONStringer();
+				response.object();
+				
+				if (id != null) {
+					response.key("id").value(id);
+				}
+				
+				response.key("type").value("cli");
+				
+				if (result != null) {
+					response
+						.key("code").value(result.getCode())
+						.key("output").value(result.getOutput())
+						.key("errorOutput").value(result.getErrorOutput());
+				} else {
+					Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, error);
+					response.key("failed").value(true);
+				}
+				
+				writer.write(response.endObject().toString());
+			} catch (JSONException ex) {
+				Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, ex);
+			} finally {
+				end();
+			}
+		});
+	}
+	
+	/**
+	 * Builds options snapshot for message.
+	 * Root path is left empty unless message specifies it, so it can be
+	 * filled for every linted file.
+	 * 
+	 * @param message
+	 * @return frozen options
+	 * @throws JSONException 
+	 */
+	protected Options messageOptions(JSONObject message) throws JSONException {
+		Options result = options.derive();
+		result.setRootPath(null);
+		result.clearSkippedVariables();
+		
+		if (message.has("options")) {
+			applyOptions(result, message.getJSONObject("options"));
+		}
+		
+		return result.freeze();
+	}
+	
+	/**
+	 * Lints single file and sends the result.
+	 * 
+	 * @param filePath path to linted file
+	 * @param contents file contents, null to load them from disk
+	 * @param id request id, null if there isn't any
+	 * @param messageOptions options of the message
+	 * @param request request which can be superseded, null if it can't
+	 * @return result summary, null when linting failed or was superseded
+	 */
+	private FileResult lintFile(String filePath, String contents, Object id, Options messageOptions, PendingLint request) {
+		if (request == null) {
+			stats.received();
+		}
+		
+		try {
+			if (request != null && request.isCancelled()) {
+				throw new LintCancelledException();
+			}
+			
+			// Each file gets its own snapshot, so workers don't interfere
+			ServerOutput output = new ServerOutput(filePath, id, null);
+			Options fileOptions = messageOptions.derive();
+			fileOptions.setOutputFormatter(output);
+			
+			if (fileOptions.getRootPath() == null) {
+				fileOptions.setRootPath(Paths.get(filePath).toAbsolutePath().getParent().toString());
+			}
+			
+			fileOptions.freeze();
+			
+			if (contents == null) {
+				contents = readFile(filePath);
+			}
+			
+			// Same contents with same options and includes give same result
+			String key = LintResultCache.key(filePath, contents, fileOptions);
+			JSONArray cached = cache.get(key);
+			if (cached != null) {
+				publish(id, filePath, cached);
+				return new FileResult(cached, true);
+			}
+			
+			Linter linter = parse(contents, filePath, fileOptions);
+			if (request != null) {
+				request.attach(linter);
+			}
+			
+			linter.start();
+			stats.linted();
+			
+			// Input is preprocessed while it's parsed
+			long preprocessTime = linter.getPreprocessor().getTime();
+			stats.record(Phase.PREPROCESS, preprocessTime);
+			stats.record(Phase.PARSE, linter.getParseTime() - preprocessTime);
+			stats.record(Phase.ANALYZE, linter.getAnalyzeTime());
+			
+			List<Path> includes = new ArrayList<>();
+			for (SQFInclude include : linter.getPreprocessor().getIncludes()) {
+				includes.add(include.getPath());
+			}
+			
+			includeGraph.update(Paths.get(filePath), includes);
+			
+			if (output.getMessages() != null) {
+				long start = System.nanoTime();
+				publish(id, filePath, output.getMessages());
+				stats.record(Phase.OUTPUT, linter.getOutputTime() + System.nanoTime() - start);
+				
+				cache.put(key, Paths.get(filePath), includes, output.getMessages());
+				return new FileResult(output.getMessages(), false);
+			}
+		} catch (LintCancelledException ex) {
+			stats.superseded();
+			superseded(request);
 		} catch (JSONException ex) {
+			stats.failed();
 			Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, ex);
-		} catch (Exception ex) {
+		} catch (Exception | StackOverflowError ex) {
+			stats.failed();
 			Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, "Error when parsing {0}", filePath);
 			Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, ex);
+			failed(id, filePath, ex);
 		}
 		
-		return true;
+		return null;
 	}
 	
-	private void applyOptions(JSONObject data) {
+	/**
+	 * Reports file which couldn't be linted, so client isn't left without answer.
+	 * 
+	 * @param id request id, null if there isn't any
+	 * @param filePath linted file
+	 * @param ex reason of the failure
+	 */
+	protected void failed(Object id, String filePath, Throwable ex) {
+		try {
+			publish(id, filePath, ServerOutput.failure("Failed to lint file: " + ex));
+		} catch (JSONException json) {
+			Logger.getLogger(SQFLintServer.class.getName()).log(Level.SEVERE, null, json);
+		}
+	}
+	
+	/**
+	 * Sends lint result of single file.
+	 * 
+	 * @param id request id, null if there isn't any
+	 * @param filePath linted file
+	 * @param messages messages built by JSONOutput
+	 * @throws JSONException 
+	 */
+	protected void publish(Object id, String filePath, JSONArray messages) throws JSONException {
+		writer.write(ServerOutput.response(id, filePath, messages));
+	}
+	
+	private void applyOptions(Options options, JSONObject data) {
 		try {
-			// @TODO: Clear options?
-			
 			if (data.has("checkPaths")) {
 				options.setCheckPaths(data.getBoolean("checkPaths"));
 			}
@@ -124,10 +757,10 @@ public class SQFLintServer {
 			}
 						
 			if (data.has("includePrefixes")) {
-				options.getIncludePaths().clear();
+				options.clearIncludePaths();
 				
 				JSONObject paths = data.getJSONObject("includePrefixes");
-				Iterator keys = paths.keys();
+				Iterator<?> keys = paths.keys();
 				while (keys.hasNext()) {
 					String key = (String)keys.next();
 					options.getIncludePaths().put(key, paths.getString(key));
@@ -143,36 +776,207 @@ public class SQFLintServer {
 		}
 	}
 	
-	public Linter parseFile(String path) throws Exception {
-		return parse(new BufferedReader(new InputStreamReader(new FileInputStream(path))).lines().collect(Collectors.joining("\n")), path);
+	/**
+	 * Handles notification about changed file (usually header).
+	 * Cached results of every file which includes changed file are dropped
+	 * and list of these files is sent back. When "relint" is set, dependent
+	 * files are also linted again from disk.
+	 * 
+	 * @param message
+	 * @throws JSONException 
+	 */
+	private void fileChanged(JSONObject message) throws JSONException {
+		Set<Path> dependents = invalidate(Paths.get(message.getString("file")));
+		
+		JSONArray files = new JSONArray();
+		for (Path dependent : dependents) {
+			files.put(dependent.toString());
+		}
+		
+		JSONStringer result = new JSONStringer();
+		result.object();
+		
+		if (message.has("id")) {
+			result.key("id").value(message.get("id"));
+		}
+		
+		writer.write(result
+			.key("file").value(message.getString("file"))
+			.key("dependents").value(files)
+			.endObject()
+			.toString()
+		);
+		
+		if (message.optBoolean("relint", false)) {
+			for (Path dependent : dependents) {
+				JSONObject relint = new JSONObject();
+				relint.put("file", dependent.toString());
+				
+				if (message.has("id")) {
+					relint.put("id", message.get("id"));
+				}
+				
+				if (message.has("options")) {
+					relint.put("options", message.getJSONObject("options"));
+				}
+				
+				begin();
+				workers.submit(() -> {
+					try {
+						lintMessage(relint);
+					} finally {
+						end();
+					}
+				});
+			}
+		}
 	}
 	
-	public Linter parse(String fileContents, String filePath) throws Exception {
-		// Apply file specific options
-		options.setOutputFormatter(new ServerOutput(filePath));
-		options.setRootPath(Paths.get(filePath).toAbsolutePath().getParent().toString());
-		options.getSkippedVariables().clear();
-
+	/**
+	 * Drops cached results of all files including specified file,
+	 * together with cached headers including it.
+	 * 
+	 * @param file changed file
+	 * @return files including changed file
+	 */
+	protected Set<Path> invalidate(Path file) {
+		Set<Path> dependents = includeGraph.getDependents(file);
+		cache.invalidate(dependents);
+		SQFIncludeCache.getShared().invalidate(file);
+		
+		return dependents;
+	}
+	
+	/**
+	 * Builds response with cache statistics.
+	 * @param message
+	 * @return response line
+	 * @throws JSONException 
+	 */
+	private String cacheStats(JSONObject message) throws JSONException {
+		JSONStringer result = new JSONStringer();
+		result.object();
+		
+		if (message.has("id")) {
+			result.key("id").value(message.get("id"));
+		}
+		
+		return result
+			.key("cache")
+			.object()
+				.key("hits").value(cache.getHits())
+				.key("misses").value(cache.getMisses())
+				.key("size").value(cache.size())
+			.endObject()
+			.key("includes")
+			.object()
+				.key("hits").value(SQFIncludeCache.getShared().getHits())
+				.key("misses").value(SQFIncludeCache.getShared().getMisses())
+				.key("size").value(SQFIncludeCache.getShared().size())
+			.endObject()
+			.endObject()
+			.toString();
+	}
+	
+	/**
+	 * Builds response with server statistics.
+	 * Contains request counters, latency of every linting phase,
+	 * state of worker queue, cache hit rates and heap usage.
+	 * 
+	 * @param message
+	 * @return response line
+	 * @throws JSONException 
+	 */
+	private String serverStats(JSONObject message) throws JSONException {
+		JSONStringer result = new JSONStringer();
+		result.object();
+		
+		if (message.has("id")) {
+			result.key("id").value(message.get("id"));
+		}
+		
+		result.key("stats").object();
+		stats.write(result);
+		
+		SQFIncludeCache includes = SQFIncludeCache.getShared();
+		Runtime runtime = Runtime.getRuntime();
+		
+		return result
+			.key("queue")
+			.object()
+				.key("depth").value(workers.getQueue().size())
+				.key("active").value(workers.getActiveCount())
+				.key("pending").value(pending.size())
+			.endObject()
+			.key("cache")
+			.object()
+				.key("hitRate").value(hitRate(cache.getHits(), cache.getMisses()))
+				.key("size").value(cache.size())
+			.endObject()
+			.key("includes")
+			.object()
+				.key("hitRate").value(hitRate(includes.getHits(), includes.getMisses()))
+				.key("size").value(includes.size())
+			.endObject()
+			.key("heap")
+			.object()
+				.key("used").value(runtime.totalMemory() - runtime.freeMemory())
+				.key("committed").value(runtime.totalMemory())
+				.key("max").value(runtime.maxMemory())
+			.endObject()
+			.endObject()
+			.endObject()
+			.toString();
+	}
+	
+	private static double hitRate(long hits, long misses) {
+		return hits + misses > 0 ? (double)hits / (hits + misses) : 0;
+	}
+	
+	private String readFile(String path) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path)))) {
+			return reader.lines().collect(Collectors.joining("\n"));
+		}
+	}
+	
+	public Linter parseFile(String path, Options options) throws Exception {
+		return parse(readFile(path), path, options);
+	}
+	
+	public Linter parse(String fileContents, String filePath, Options options) throws Exception {
 		// Preprocessor may be required
 		SQFPreprocessor preprocessor = new SQFPreprocessor(options);
 		
-		// Create linter from preprocessed input
-		Linter linter = new Linter(stringToStream(preprocessor.process(
-			fileContents,
+		// Create linter reading preprocessed input as it's parsed
+		Linter linter = new Linter(preprocessor.reader(
+			new StringReader(fileContents),
 			filePath,
 			true
-		)), options);
+		), options);
 		linter.setPreprocessor(preprocessor);
 		
 		return linter;
 	}
 	
 	/**
-	 * Creates input stream (with UTF-8 encoding) from input string.
-	 * @param input
-	 * @return 
+	 * Summary of single file result, used for batch summaries.
 	 */
-	private InputStream stringToStream(String input) {
-		return new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8));
+	private static class FileResult {
+		private int errors = 0;
+		private int warnings = 0;
+		private final boolean cached;
+		
+		public FileResult(JSONArray messages, boolean cached) {
+			this.cached = cached;
+			
+			for (int i = 0; i < messages.length(); i++) {
+				String type = messages.optJSONObject(i) != null ? messages.optJSONObject(i).optString("type") : "";
+				if ("error".equals(type)) {
+					errors++;
+				} else if ("warning".equals(type)) {
+					warnings++;
+				}
+			}
+		}
 	}
 }
@@ -0,0 +1,465 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint;
+
+import cz.zipek.sqflint.cache.DiskCache;
+import cz.zipek.sqflint.linter.Linter;
+import cz.zipek.sqflint.linter.Options;
+import cz.zipek.sqflint.output.JSONOutput;
+import cz.zipek.sqflint.output.ServerOutput;
+import cz.zipek.sqflint.output.TextOutput;
+import cz.zipek.sqflint.preprocessor.SQFInclude;
+import cz.zipek.sqflint.preprocessor.SQFPreprocessor;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Lints multiple files in single run.
+ * Files are linted in parallel using fork/join pool, output of every file
+ * is buffered and printed in order of file paths once everything is done.
+ * Options (including loaded commands) and include cache are shared by all
+ * files. Results can be also stored in persistent cache, so unchanged files
+ * are skipped in following runs.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class SQFLintWorkspace {
+	private final Options options;
+	private final int parallelism;
+	private final DiskCache cache;
+	
+	private boolean grouped = true;
+	private Path directory = null;
+	
+	/**
+	 * @param options base options used for every file
+	 * @param parallelism number of files linted in parallel
+	 */
+	public SQFLintWorkspace(Options options, int parallelism) {
+		this(options, parallelism, null);
+	}
+	
+	/**
+	 * @param options base options used for every file
+	 * @param parallelism number of files linted in parallel
+	 * @param cache persistent cache of results, null disables caching
+	 */
+	public SQFLintWorkspace(Options options, int parallelism, DiskCache cache) {
+		this.options = options.derive().freeze();
+		this.parallelism = Math.max(1, parallelism);
+		this.cache = cache;
+	}
+	
+	/**
+	 * Expands list of files, directories and glob patterns into sorted
+	 * list of files. Directories are searched recursively for sqf files.
+	 * 
+	 * @param patterns
+	 * @return sorted list of unique files
+	 * @throws IOException 
+	 */
+	public static List<Path> collect(String[] patterns) throws IOException {
+		TreeSet<Path> result = new TreeSet<>();
+		
+		for (String pattern : patterns) {
+			if (isGlob(pattern)) {
+				// Walk from the deepest directory without wildcards
+				int wildcard = firstWildcard(pattern);
+				int separator = Math.max(
+					pattern.lastIndexOf('/', wildcard),
+					pattern.lastIndexOf('\\', wildcard)
+				);
+				Path base = Paths.get(separator >= 0 ? pattern.substring(0, separator + 1) : ".");
+				PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+				
+				try (Stream<Path> files = Files.walk(base)) {
+					result.addAll(files
+						.filter(Files::isRegularFile)
+						.map(p -> separator >= 0 ? p : base.relativize(p))
+						.filter(matcher::matches)
+						.map(p -> p.normalize())
+						.collect(Collectors.toList())
+					);
+				}
+			} else if (Files.isDirectory(Paths.get(pattern))) {
+				try (Stream<Path> files = Files.walk(Paths.get(pattern))) {
+					result.addAll(files
+						.filter(Files::isRegularFile)
+						.filter(p -> p.getFileName().toString().toLowerCase().endsWith(".sqf"))
+						.map(p -> p.normalize())
+						.collect(Collectors.toList())
+					);
+				}
+			} else {
+				result.add(Paths.get(pattern).normalize());
+			}
+		}
+		
+		return new ArrayList<>(result);
+	}
+	
+	/**
+	 * @param pattern
+	 * @return if pattern contains glob wildcards
+	 */
+	public static boolean isGlob(String pattern) {
+		return firstWildcard(pattern) < pattern.length();
+	}
+	
+	private static int firstWildcard(String pattern) {
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '*' || c == '?' || c == '[' || c == '{') {
+				return i;
+			}
+		}
+		return pattern.length();
+	}
+	
+	/**
+	 * Lints all files and prints their results in order of the list.
+	 * 
+	 * @param files
+	 * @return ERR code when any file returned ERR, OK otherwise
+	 */
+	public int lint(List<Path> files) {
+		FileResult[] results = new FileResult[files.size()];
+		
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new LintTask(files, results, 0, files.size()));
+		} finally {
+			pool.shutdown();
+		}
+		
+		if (cache != null) {
+			cache.evict();
+		}
+		
+		FileResult result = combine(results);
+		
+		System.out.print(result.output);
+		System.err.print(result.errorOutput);
+		System.out.flush();
+		System.err.flush();
+		
+		return result.code;
+	}
+	
+	/**
+	 * Lints all files using specified executor, without blocking.
+	 * 
+	 * @param files
+	 * @param executor
+	 * @return future with output of all files in order of the list
+	 */
+	CompletableFuture<FileResult> lint(List<Path> files, Executor executor) {
+		List<CompletableFuture<FileResult>> futures = new ArrayList<>();
+		for (Path file : files) {
+			futures.add(CompletableFuture.supplyAsync(() -> lintFile(file), executor));
+		}
+		
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply((done) -> {
+			if (cache != null) {
+				cache.evict();
+			}
+			
+			FileResult[] results = new FileResult[futures.size()];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = futures.get(i).join();
+			}
+			
+			return combine(results);
+		});
+	}
+	
+	/**
+	 * Joins results of multiple files.
+	 * 
+	 * @param results
+	 * @return ERR code when any file returned ERR with outputs of all files
+	 */
+	private static FileResult combine(FileResult[] results) {
+		int code = Linter.CODE_OK;
+		StringBuilder output = new StringBuilder();
+		StringBuilder errorOutput = new StringBuilder();
+		
+		for (FileResult result : results) {
+			output.append(result.output);
+			errorOutput.append(result.errorOutput);
+			
+			if (result.code != Linter.CODE_OK) {
+				code = Linter.CODE_ERR;
+			}
+		}
+		
+		return new FileResult(code, output.toString(), errorOutput.toString());
+	}
+	
+	/**
+	 * Lints single file, output is captured into the result.
+	 * Result is loaded from cache when possible.
+	 * 
+	 * @param file
+	 * @return 
+	 */
+	private FileResult lintFile(Path file) {
+		// File is read from working directory, but labeled as specified
+		Path source = directory != null ? directory.resolve(file) : file;
+		
+		Options fileOptions = options.derive();
+		if (fileOptions.getRootPath() == null) {
+			fileOptions.setRootPath(source.toAbsolutePath().getParent().toString());
+		}
+		
+		boolean json = options.getOutputFormatter() instanceof JSONOutput;
+		String contents;
+		
+		try {
+			contents = readFile(source);
+		} catch (IOException ex) {
+			Logger.getLogger(SQFLintWorkspace.class.getName()).log(Level.SEVERE, "Error when reading " + file, ex);
+			return new FileResult(
+				options.isExitCodeEnabled() ? Linter.CODE_ERR : Linter.CODE_OK,
+				"",
+				""
+			);
+		}
+		
+		String key = null;
+		if (cache != null) {
+			key = DiskCache.key(
+				file.toString(),
+				contents,
+				fileOptions,
+				(json ? "json" : "text") + (grouped ? ",grouped" : "")
+			);
+			
+			JSONObject cached = cache.get(key);
+			if (cached != null) {
+				try {
+					return new FileResult(
+						cached.getInt("code"),
+						cached.getString("output"),
+						cached.getString("errorOutput")
+					);
+				} catch (JSONException ex) {
+					// Invalid entry, lint the file again
+				}
+			}
+		}
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ByteArrayOutputStream errorOutput = new ByteArrayOutputStream();
+		List<Path> includes = new ArrayList<>();
+		int code;
+		boolean failed = false;
+		
+		try (
+			PrintStream out = new PrintStream(output, true, "UTF-8");
+			PrintStream err = new PrintStream(errorOutput, true, "UTF-8")
+		) {
+			if (json && grouped) {
+				fileOptions.setOutputFormatter(new ServerOutput(file.toString(), null, out::println));
+			} else if (json) {
+				fileOptions.setOutputFormatter(new JSONOutput(out));
+			} else {
+				fileOptions.setOutputFormatter(new TextOutput(err));
+			}
+			
+			fileOptions.freeze();
+			
+			try {
+				SQFPreprocessor preprocessor = new SQFPreprocessor(fileOptions);
+				Linter linter = new Linter(
+					preprocessor.reader(
+						new StringReader(contents),
+						file.toString(),
+						source.toAbsolutePath().getParent(),
+						true
+					),
+					fileOptions
+				);
+				linter.setPreprocessor(preprocessor);
+				
+				code = linter.start();
+				
+				for (SQFInclude include : preprocessor.getIncludes()) {
+					includes.add(include.getPath());
+				}
+			} catch (Exception | StackOverflowError ex) {
+				Logger.getLogger(SQFLintWorkspace.class.getName()).log(Level.SEVERE, "Error when parsing " + file, ex);
+				code = fileOptions.isExitCodeEnabled() ? Linter.CODE_ERR : Linter.CODE_OK;
+				failed = true;
+			}
+		} catch (UnsupportedEncodingException ex) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(ex);
+		}
+		
+		// Text output doesn't contain file names, so prefix it with one
+		String errors = new String(errorOutput.toByteArray(), StandardCharsets.UTF_8);
+		if (grouped && !errors.isEmpty()) {
+			errors = file.toString() + ":" + System.lineSeparator() + errors;
+		}
+		
+		FileResult result = new FileResult(
+			code,
+			new String(output.toByteArray(), StandardCharsets.UTF_8),
+			errors
+		);
+		
+		if (cache != null && !failed) {
+			try {
+				JSONObject data = new JSONObject();
+				data.put("code", result.code);
+				data.put("output", result.output);
+				data.put("errorOutput", result.errorOutput);
+				cache.put(key, includes, data);
+			} catch (JSONException ex) {
+				Logger.getLogger(SQFLintWorkspace.class.getName()).log(Level.WARNING, null, ex);
+			}
+		}
+		
+		return result;
+	}
+	
+	private String readFile(Path file) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file.toFile()), StandardCharsets.UTF_8))) {
+			return reader.lines().collect(Collectors.joining("\n"));
+		}
+	}
+
+	/**
+	 * @param directory directory relative paths are resolved against,
+	 * null to use current directory
+	 */
+	public void setDirectory(Path directory) {
+		this.directory = directory;
+	}
+	
+	/**
+	 * @param grouped if output of every file should be grouped and labeled
+	 * by file name, when disabled output is same as when linting single file
+	 */
+	public void setGrouped(boolean grouped) {
+		this.grouped = grouped;
+	}
+	
+	/**
+	 * Splits list of files until there is single file to lint.
+	 */
+	private class LintTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final List<Path> files;
+		private final FileResult[] results;
+		private final int from;
+		private final int to;
+
+		public LintTask(List<Path> files, FileResult[] results, int from, int to) {
+			this.files = files;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= 1) {
+				if (from < to) {
+					results[from] = lintFile(files.get(from));
+				}
+				return;
+			}
+			
+			int middle = (from + to) / 2;
+			invokeAll(
+				new LintTask(files, results, from, middle),
+				new LintTask(files, results, middle, to)
+			);
+		}
+	}
+	
+	/**
+	 * Exit code and captured output of linted files.
+	 */
+	static class FileResult {
+		private final int code;
+		private final String output;
+		private final String errorOutput;
+
+		public FileResult(int code, String output, String errorOutput) {
+			this.code = code;
+			this.output = output;
+			this.errorOutput = errorOutput;
+		}
+
+		/**
+		 * @return exit code
+		 */
+		public int getCode() {
+			return code;
+		}
+
+		/**
+		 * @return standard output
+		 */
+		public String getOutput() {
+			return output;
+		}
+
+		/**
+		 * @return error output
+		 */
+		public String getErrorOutput() {
+			return errorOutput;
+		}
+	}
+}
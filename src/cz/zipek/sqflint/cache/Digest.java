@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.cache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for computing content hashes used as cache keys.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public final class Digest {
+	/**
+	 * Hash used for files which don't exist.
+	 */
+	public static final String MISSING = "missing";
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private Digest() {}
+	
+	/**
+	 * Computes hash of specified strings.
+	 * Parts are separated, so ("ab", "c") and ("a", "bc") have different hash.
+	 * 
+	 * @param parts
+	 * @return hex encoded hash
+	 */
+	public static String of(String... parts) {
+		MessageDigest digest = create();
+		
+		for (String part : parts) {
+			if (part != null) {
+				digest.update(part.getBytes(StandardCharsets.UTF_8));
+			}
+			digest.update((byte)0);
+		}
+		
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Computes hash of specified bytes.
+	 * 
+	 * @param data
+	 * @return hex encoded hash
+	 */
+	public static String of(byte[] data) {
+		return toHex(create().digest(data));
+	}
+	
+	/**
+	 * Computes hash of file contents.
+	 * 
+	 * @param path
+	 * @return hex encoded hash or {@link #MISSING} if file can't be read
+	 */
+	public static String file(Path path) {
+		try {
+			if (path == null || !Files.isRegularFile(path)) {
+				return MISSING;
+			}
+			
+			return of(Files.readAllBytes(path));
+		} catch (IOException ex) {
+			return MISSING;
+		}
+	}
+	
+	private static MessageDigest create() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			// Every java platform is required to support SHA-1
+			throw new IllegalStateException(ex);
+		}
+	}
+	
+	/**
+	 * @param data
+	 * @return hex encoded data
+	 */
+	public static String toHex(byte[] data) {
+		char[] result = new char[data.length * 2];
+		for (int i = 0; i < data.length; i++) {
+			result[i * 2] = HEX[(data[i] >> 4) & 0xF];
+			result[i * 2 + 1] = HEX[data[i] & 0xF];
+		}
+		return new String(result);
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.cache;
+
+import cz.zipek.sqflint.linter.Options;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Persistent cache of lint results stored in directory.
+ * Every result is stored in separate file named by its key, which is built
+ * from file path, contents, options and version of linter. Version is hash
+ * of the linter jar and the commands list, so results are never reused after
+ * upgrade. Result also contains hashes of all included files and is only
+ * used when none of them changed.
+ * Files are written atomically, so multiple processes can share the cache.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class DiskCache {
+	private static final String EXTENSION = ".json";
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+	// Changed whenever format of entries changes
+	private static final String FORMAT = "1";
+	private static final String VERSION = loadVersion();
+	
+	// Temporary files older than this were left by crashed process
+	private static final long TEMPORARY_AGE = 10 * 60 * 1000;
+	
+	private final Path directory;
+	private final long maxSize;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * @param directory directory used to store results
+	 * @param maxSize maximum size of the directory in bytes
+	 * @throws IOException 
+	 */
+	public DiskCache(Path directory, long maxSize) throws IOException {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		
+		Files.createDirectories(directory);
+	}
+	
+	/**
+	 * Builds cache key for specified input.
+	 * 
+	 * @param filePath path to linted file
+	 * @param contents contents of linted file
+	 * @param options options used to lint the file
+	 * @param format identifier of output format
+	 * @return cache key
+	 */
+	public static String key(String filePath, String contents, Options options, String format) {
+		return Digest.of(VERSION, filePath, contents, options.fingerprint(), format);
+	}
+	
+	/**
+	 * Loads cached result.
+	 * 
+	 * @param key see {@link #key(String, String, Options, String)}
+	 * @return cached data or null when there isn't valid result
+	 */
+	public JSONObject get(String key) {
+		Path file = directory.resolve(key + EXTENSION);
+		
+		try {
+			JSONObject entry = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+			JSONObject includes = entry.getJSONObject("includes");
+			
+			Iterator<?> keys = includes.keys();
+			while (keys.hasNext()) {
+				String include = (String)keys.next();
+				if (!includes.getString(include).equals(Digest.file(Paths.get(include)))) {
+					misses.incrementAndGet();
+					return null;
+				}
+			}
+			
+			// Used entries are kept longer when evicting
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			
+			hits.incrementAndGet();
+			return entry.getJSONObject("data");
+		} catch (NoSuchFileException ex) {
+			misses.incrementAndGet();
+			return null;
+		} catch (IOException | JSONException ex) {
+			// Broken entry is treated as missing, it will be overwritten
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+	
+	/**
+	 * Saves result. File is written to temporary file first and then
+	 * moved to its place, so readers never see partially written entry.
+	 * 
+	 * @param key see {@link #key(String, String, Options, String)}
+	 * @param includes paths of all included files
+	 * @param data result data
+	 */
+	public void put(String key, Collection<Path> includes, JSONObject data) {
+		Path temporary = null;
+		
+		try {
+			JSONObject hashes = new JSONObject();
+			for (Path include : includes) {
+				if (include != null) {
+					Path normalized = include.toAbsolutePath().normalize();
+					hashes.put(normalized.toString(), Digest.file(normalized));
+				}
+			}
+			
+			JSONObject entry = new JSONObject();
+			entry.put("includes", hashes);
+			entry.put("data", data);
+			
+			temporary = Files.createTempFile(directory, key, TEMPORARY_EXTENSION);
+			Files.write(temporary, entry.toString().getBytes(StandardCharsets.UTF_8));
+			
+			Path target = directory.resolve(key + EXTENSION);
+			try {
+				Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException | JSONException ex) {
+			Logger.getLogger(DiskCache.class.getName()).log(Level.WARNING, "Failed to save cache entry", ex);
+			
+			if (temporary != null) {
+				try {
+					Files.deleteIfExists(temporary);
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Removes least recently used entries until cache fits its maximum size.
+	 * Temporary files left by crashed processes are removed too.
+	 */
+	public void evict() {
+		removeTemporary();
+		
+		List<Path> files = new ArrayList<>();
+		long size = 0;
+		
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(DiskCache.class.getName()).log(Level.WARNING, "Failed to list cache directory", ex);
+			return;
+		}
+		
+		List<Item> items = new ArrayList<>();
+		for (Path file : files) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				items.add(new Item(file, attributes.size(), attributes.lastModifiedTime().toMillis()));
+				size += attributes.size();
+			} catch (IOException ex) {
+				// Removed by other process in the meantime
+			}
+		}
+		
+		if (size <= maxSize) {
+			return;
+		}
+		
+		items.sort((a, b) -> Long.compare(a.modified, b.modified));
+		for (Item item : items) {
+			if (size <= maxSize) {
+				break;
+			}
+			
+			try {
+				Files.deleteIfExists(item.path);
+			} catch (IOException ex) {
+				// Other process may be using it, skip
+			}
+			size -= item.size;
+		}
+	}
+
+	/**
+	 * Removes temporary files which weren't moved to their place for long time.
+	 * Recent ones can still be written by other process.
+	 */
+	private void removeTemporary() {
+		long limit = System.currentTimeMillis() - TEMPORARY_AGE;
+		
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + TEMPORARY_EXTENSION)) {
+			for (Path file : stream) {
+				try {
+					if (Files.getLastModifiedTime(file).toMillis() < limit) {
+						Files.deleteIfExists(file);
+					}
+				} catch (IOException ex) {
+					// Moved or removed by other process in the meantime
+				}
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(DiskCache.class.getName()).log(Level.WARNING, "Failed to list cache directory", ex);
+		}
+	}
+	
+	/**
+	 * @return number of results loaded from cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of results not found in cache
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Builds version identifier of the linter. Commands list is part of
+	 * the version, because it changes results of linting.
+	 */
+	private static String loadVersion() {
+		String version = Digest.of(FORMAT, loadJarVersion());
+		
+		try (InputStream in = DiskCache.class.getResourceAsStream("/res/commands.txt")) {
+			ByteArrayOutputStream commands = new ByteArrayOutputStream();
+			if (in != null) {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) > 0) {
+					commands.write(buffer, 0, read);
+				}
+			}
+			
+			return Digest.of(version, Digest.of(commands.toByteArray()));
+		} catch (IOException ex) {
+			return Digest.of(version);
+		}
+	}
+	
+	/**
+	 * @return hash of jar containing the linter, null when it isn't run from jar
+	 */
+	private static String loadJarVersion() {
+		try {
+			CodeSource source = DiskCache.class.getProtectionDomain().getCodeSource();
+			if (source == null) {
+				return null;
+			}
+			
+			Path location = Paths.get(source.getLocation().toURI());
+			return Files.isRegularFile(location) ? Digest.file(location) : null;
+		} catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException | SecurityException ex) {
+			return null;
+		}
+	}
+	
+	private static class Item {
+		private final Path path;
+		private final long size;
+		private final long modified;
+
+		public Item(Path path, long size, long modified) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.cache;
+
+import cz.zipek.sqflint.linter.Options;
+import cz.zipek.sqflint.preprocessor.SQFIncludeCache;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+
+/**
+ * Bounded LRU cache of lint results.
+ * Results are keyed by file path, hash of file contents and fingerprint of
+ * options used. Every entry also remembers hashes of all files it included,
+ * entry is only used when none of the included files changed. Included files
+ * are only hashed again when their modification time or size changes.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class LintResultCache {
+	private final int capacity;
+	private final Map<String, CachedResult> entries;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * @param capacity maximum number of cached results, 0 disables cache
+	 */
+	public LintResultCache(int capacity) {
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+				return size() > LintResultCache.this.capacity;
+			}
+		};
+	}
+	
+	/**
+	 * Builds cache key for specified input.
+	 * 
+	 * @param filePath path of linted file
+	 * @param contents contents of linted file
+	 * @param options options used to lint the file
+	 * @return cache key
+	 */
+	public static String key(String filePath, String contents, Options options) {
+		return Digest.of(filePath, contents, options.fingerprint());
+	}
+	
+	/**
+	 * Loads cached result.
+	 * 
+	 * @param key see {@link #key(String, String, Options)}
+	 * @return cached messages or null if there is no valid result
+	 */
+	public JSONArray get(String key) {
+		if (capacity <= 0) {
+			return null;
+		}
+		
+		CachedResult entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		
+		if (entry != null && !entry.isValid()) {
+			synchronized (entries) {
+				entries.remove(key, entry);
+			}
+			entry = null;
+		}
+		
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		
+		hits.incrementAndGet();
+		return entry.messages;
+	}
+	
+	/**
+	 * Saves lint result.
+	 * 
+	 * @param key see {@link #key(String, String, Options)}
+	 * @param file linted file
+	 * @param includes paths of all files included when linting
+	 * @param messages resulting messages, mustn't be modified afterwards
+	 */
+	public void put(String key, Path file, Collection<Path> includes, JSONArray messages) {
+		if (capacity <= 0) {
+			return;
+		}
+		
+		Map<Path, Include> hashes = new HashMap<>();
+		for (Path include : includes) {
+			if (include != null) {
+				// Stamp is taken first, so change during hashing is noticed later
+				String stamp = SQFIncludeCache.stamp(include);
+				hashes.put(include, new Include(stamp, Digest.file(include)));
+			}
+		}
+		
+		synchronized (entries) {
+			entries.put(key, new CachedResult(file.toAbsolutePath().normalize(), hashes, messages));
+		}
+	}
+	
+	/**
+	 * Removes all cached results of specified files.
+	 * 
+	 * @param files
+	 * @return number of removed results
+	 */
+	public int invalidate(Collection<Path> files) {
+		Set<Path> normalized = new HashSet<>();
+		for (Path file : files) {
+			normalized.add(file.toAbsolutePath().normalize());
+		}
+		
+		int removed = 0;
+		synchronized (entries) {
+			Iterator<CachedResult> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				if (normalized.contains(iterator.next().file)) {
+					iterator.remove();
+					removed++;
+				}
+			}
+		}
+		
+		return removed;
+	}
+	
+	/**
+	 * Removes all cached results.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+	
+	/**
+	 * @return number of cached results
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return number of requests answered from cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of requests not found in cache
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	private static class CachedResult {
+		private final Path file;
+		private final Map<Path, Include> includes;
+		private final JSONArray messages;
+
+		public CachedResult(Path file, Map<Path, Include> includes, JSONArray messages) {
+			this.file = file;
+			this.includes = includes;
+			this.messages = messages;
+		}
+		
+		/**
+		 * @return if none of the included files changed
+		 */
+		public boolean isValid() {
+			for (Map.Entry<Path, Include> include : includes.entrySet()) {
+				if (!include.getValue().isCurrent(include.getKey())) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * State of included file when the result was cached.
+	 */
+	private static class Include {
+		private volatile String stamp;
+		private final String hash;
+
+		public Include(String stamp, String hash) {
+			this.stamp = stamp;
+			this.hash = hash;
+		}
+		
+		/**
+		 * @param path
+		 * @return if contents of the file didn't change
+		 */
+		public boolean isCurrent(Path path) {
+			String current = SQFIncludeCache.stamp(path);
+			if (current.equals(stamp)) {
+				return true;
+			}
+			
+			// File was touched, but its contents can still be the same
+			if (hash.equals(Digest.file(path))) {
+				stamp = current;
+				return true;
+			}
+			
+			return false;
+		}
+	}
+}
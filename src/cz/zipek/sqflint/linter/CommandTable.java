@@ -0,0 +1,302 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.linter;
+
+import cz.zipek.sqflint.sqf.operators.GenericOperator;
+import cz.zipek.sqflint.sqf.operators.Operator;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Table of commands and their signatures.
+ * Commands dump (commands.txt) is compiled during build into compact
+ * binary table (commands.bin), which is loaded without any text parsing.
+ * Signatures are stored as int bitsets of allowed types. When the compiled
+ * table isn't available, text dump is parsed instead.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class CommandTable {
+	public static final String SOURCE = "/res/commands.txt";
+	public static final String COMPILED = "/res/commands.bin";
+	
+	private static final int MAGIC = 0x53514643;
+	private static final int VERSION = 2;
+	
+	private static final int LEFT_EMPTY = 1;
+	private static final int RIGHT_EMPTY = 2;
+	
+	private CommandTable() {}
+	
+	/**
+	 * Loads generic operators for all commands, existing operators are kept.
+	 * 
+	 * @param operators map receiving operators
+	 * @throws IOException 
+	 */
+	public static void load(Map<String, Operator> operators) throws IOException {
+		InputStream compiled = CommandTable.class.getResourceAsStream(COMPILED);
+		if (compiled != null) {
+			try (InputStream in = compiled) {
+				read(in, operators);
+				return;
+			}
+		}
+		
+		try (InputStream in = CommandTable.class.getResourceAsStream(SOURCE)) {
+			parse(in, operators);
+		}
+	}
+	
+	/**
+	 * Parses text commands dump.
+	 * 
+	 * @param in commands dump
+	 * @param operators map receiving operators
+	 * @throws IOException 
+	 */
+	public static void parse(InputStream in, Map<String, Operator> operators) throws IOException {
+		// Binary commands
+		Pattern bre = Pattern.compile("(?i)b:([a-z0-9,]*) ([a-z0-9_]*) ([a-z0-9,]*)");
+		// Unary commands
+		Pattern ure = Pattern.compile("(?i)u:([a-z0-9_]*) ([a-z0-9,]*)");
+		// Noargs commands
+		Pattern nre = Pattern.compile("(?i)n:([a-z0-9_]*)");
+		
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		
+		// Read line by line
+		String line;
+		while((line = reader.readLine()) != null) {
+			String ident = null;
+			String[] left = null;
+			String[] right = null;
+			
+			// Try to match one if the command regexp
+			Matcher m = bre.matcher(line);
+			if (m.find()) {
+				ident = m.group(2).toLowerCase();
+				
+				left = m.group(1).split(",");
+				right = m.group(3).split(",");
+			}
+			
+			m = ure.matcher(line);
+			if (m.find()) {
+				ident = m.group(1).toLowerCase();
+				
+				right = m.group(2).split(",");
+			}
+			
+			m = nre.matcher(line);
+			if (m.find()) {
+				ident = m.group(1).toLowerCase();
+			}
+			
+			if (ident != null) {
+				if (!operators.containsKey(ident)) {
+					operators.put(ident, new GenericOperator(ident));
+				}
+				
+				Operator op = operators.get(ident);
+				if (op instanceof GenericOperator) {					
+					GenericOperator genop = (GenericOperator)op;
+					for(GenericOperator.Type ttype : convertToTypes(left)) {
+						genop.addLeft(ttype);
+					}
+					for(GenericOperator.Type ttype : convertToTypes(right)) {
+						genop.addRight(ttype);
+					}
+					
+					if (left == null) {
+						genop.allowLeftEmpty(true);
+					}
+					
+					if (right == null) {
+						genop.allowRightEmpty(true);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Converts string type definitions to enums.
+	 * @param values
+	 * @return 
+	 */
+	private static GenericOperator.Type[] convertToTypes(String[] values) {
+		if (values == null) {
+			return new GenericOperator.Type[0];
+		}
+		
+		GenericOperator.Type[] types = new GenericOperator.Type[values.length];
+		for(int i = 0; i < values.length; i++) {
+			try {
+				types[i] = GenericOperator.Type.valueOf(values[i].toUpperCase());
+			} catch(IllegalArgumentException e) {
+				types[i] = GenericOperator.Type.ANY;
+			}
+		}
+		
+		return types;
+	}
+	
+	/**
+	 * Reads compiled table.
+	 * 
+	 * @param in compiled table
+	 * @param operators map receiving operators
+	 * @throws IOException when table is invalid
+	 */
+	public static void read(InputStream in, Map<String, Operator> operators) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		
+		if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+			throw new IOException("Invalid compiled command table");
+		}
+		
+		GenericOperator.Type[] types = GenericOperator.Type.values();
+		
+		int count = data.readInt();
+		for (int i = 0; i < count; i++) {
+			String name = data.readUTF();
+			int flags = data.readUnsignedByte();
+			int left = data.readInt();
+			int right = data.readInt();
+			
+			// Specialized operators are never replaced
+			if (operators.containsKey(name)) {
+				continue;
+			}
+			
+			GenericOperator operator = new GenericOperator(name);
+			operator.allowLeftEmpty((flags & LEFT_EMPTY) != 0);
+			operator.allowRightEmpty((flags & RIGHT_EMPTY) != 0);
+			
+			for (GenericOperator.Type type : types) {
+				if ((left & (1 << type.ordinal())) != 0) {
+					operator.addLeft(type);
+				}
+				if ((right & (1 << type.ordinal())) != 0) {
+					operator.addRight(type);
+				}
+			}
+			
+			operators.put(name, operator);
+		}
+	}
+	
+	/**
+	 * Writes compiled table of all generic operators.
+	 * 
+	 * @param operators
+	 * @param out
+	 * @throws IOException 
+	 */
+	public static void write(Map<String, Operator> operators, OutputStream out) throws IOException {
+		// Fails the build instead of writing truncated signatures
+		if (GenericOperator.Type.values().length > Integer.SIZE) {
+			throw new IOException("Operator types don't fit into compiled command table");
+		}
+		
+		List<GenericOperator> generic = new ArrayList<>();
+		for (Operator operator : operators.values()) {
+			if (operator instanceof GenericOperator) {
+				generic.add((GenericOperator)operator);
+			}
+		}
+		
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(generic.size());
+		
+		for (GenericOperator operator : generic) {
+			data.writeUTF(operator.getName());
+			data.writeByte(
+				(operator.isLeftEmptyAllowed() ? LEFT_EMPTY : 0) |
+				(operator.isRightEmptyAllowed() ? RIGHT_EMPTY : 0)
+			);
+			data.writeInt(mask(operator.getLeft()));
+			data.writeInt(mask(operator.getRight()));
+		}
+		
+		data.flush();
+	}
+	
+	private static int mask(Iterable<GenericOperator.Type> types) {
+		int result = 0;
+		for (GenericOperator.Type type : types) {
+			result |= 1 << type.ordinal();
+		}
+		return result;
+	}
+	
+	/**
+	 * Compiles commands dump, used during build.
+	 * 
+	 * @param args path to commands.txt and path to resulting commands.bin
+	 * @throws IOException 
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: CommandTable commands.txt commands.bin");
+			System.exit(1);
+		}
+		
+		// Keep order of the dump, so the output is reproducible
+		Map<String, Operator> operators = new LinkedHashMap<>();
+		try (InputStream in = new FileInputStream(args[0])) {
+			parse(in, operators);
+		}
+		
+		Path target = Paths.get(args[1]);
+		if (target.getParent() != null) {
+			Files.createDirectories(target.getParent());
+		}
+		
+		try (OutputStream out = new FileOutputStream(target.toFile())) {
+			write(operators, out);
+		}
+	}
+}
@@ -8,9 +8,11 @@ import cz.zipek.sqflint.parser.TokenMgrError;
 import cz.zipek.sqflint.preprocessor.SQFInclude;
 import cz.zipek.sqflint.preprocessor.SQFMacro;
 import cz.zipek.sqflint.preprocessor.SQFPreprocessor;
+import cz.zipek.sqflint.preprocessor.SQFPreprocessorException;
 import cz.zipek.sqflint.sqf.SQFContext;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -33,16 +35,34 @@ public class Linter extends SQFParser {
 	private SQFPreprocessor preprocessor;
 	private final Options options;
 	
+	private volatile boolean cancelled = false;
+	
+	// Duration of linting phases of last start, in nanoseconds
+	private long parseTime = 0;
+	private long analyzeTime = 0;
+	private long outputTime = 0;
+	
 	public Linter(InputStream stream, Options options) {
 		super(stream);
 		
 		this.options = options;
 	}
 	
+	/**
+	 * @param reader source code, usually reader of preprocessor output
+	 * @param options 
+	 */
+	public Linter(Reader reader, Options options) {
+		super(reader);
+		
+		this.options = options;
+	}
+	
 	public int start() throws IOException {
 		setTabSize(1);
 		
 		SQFBlock block = null;
+		long time = System.nanoTime();
 		
 		try {
 			block = CompilationUnit();
@@ -54,13 +74,40 @@ public class Linter extends SQFParser {
 			} else if (e instanceof TokenMgrError) {
 				getErrors().add(new SQFParseException((TokenMgrError)e));
 			}
+		} catch (StackOverflowError ex) {
+			// Whatever was reported before the overflow is an artifact of it
+			getErrors().clear();
+			getErrors().add(new SQFParseException(lineToken(Math.max(token.beginLine, 1)), "Code is nested too deeply to be parsed."));
 		} finally {
+			// Parser swallows exceptions, so cancellation has to be checked again
+			checkCancelled();
+			
+			parseTime = System.nanoTime() - time;
+			time = System.nanoTime();
+			
+			// Preprocessor failure looks like end of input to the parser,
+			// anything found in the truncated code would be misleading
+			if (preprocessor != null && preprocessor.getFailure() != null) {
+				getErrors().clear();
+				getErrors().add(failure(preprocessor.getFailure()));
+				block = null;
+			}
+			
 			if (block != null) {
-				block.analyze(this, null);
+				try {
+					block.analyze(this, null);
+				} catch (StackOverflowError ex) {
+					getErrors().add(new SQFParseException(lineToken(1), "Code is nested too deeply to be analyzed."));
+				}
 			}
 			
+			analyzeTime = System.nanoTime() - time;
+			time = System.nanoTime();
+			
 			// postParse();
 			options.getOutputFormatter().print(this);
+			
+			outputTime = System.nanoTime() - time;
 		}
 		
 		// Always return OK if exit code is disabled
@@ -72,6 +119,34 @@ public class Linter extends SQFParser {
 		return (getErrors().size() > 0) ? CODE_ERR : CODE_OK;
 	}
 		
+	/**
+	 * Converts exception which stopped preprocessing to error of linted file.
+	 * 
+	 * @param ex
+	 * @return error
+	 */
+	private SQFParseException failure(Exception ex) {
+		if (ex instanceof SQFPreprocessorException) {
+			SQFPreprocessorException failure = (SQFPreprocessorException)ex;
+			return new SQFParseException(
+				failure.getFilename(),
+				lineToken(Math.max(1, failure.getLine())),
+				failure.getMessage()
+			);
+		}
+		
+		return new SQFParseException(lineToken(1), "Failed to read input: " + ex.getMessage());
+	}
+	
+	private Token lineToken(int line) {
+		Token token = new Token(STRING_LITERAL);
+		token.beginLine = line;
+		token.endLine = line;
+		token.beginColumn = 1;
+		token.endColumn = 1;
+		return token;
+	}
+	
 	/**
 	 * Post parse checks, mainly for warnings.
 	 * Currently checks if every used local variable is actually defined.
@@ -82,6 +157,53 @@ public class Linter extends SQFParser {
 		getWarnings().addAll(preprocessor.getWarnings());
 	}
 	
+	/**
+	 * @return duration of parsing in last start, in nanoseconds
+	 */
+	public long getParseTime() {
+		return parseTime;
+	}
+
+	/**
+	 * @return duration of analysis in last start, in nanoseconds
+	 */
+	public long getAnalyzeTime() {
+		return analyzeTime;
+	}
+
+	/**
+	 * @return duration of output in last start, in nanoseconds
+	 */
+	public long getOutputTime() {
+		return outputTime;
+	}
+	
+	/**
+	 * Requests cancellation of running lint. Linter stops at next statement
+	 * and start throws LintCancelledException. Can be called from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	/**
+	 * @return if cancellation was requested
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * Throws exception when cancellation was requested.
+	 * @throws LintCancelledException 
+	 */
+	@Override
+	public void checkCancelled() {
+		if (cancelled) {
+			throw new LintCancelledException();
+		}
+	}
+	
 	@Override
 	protected void pushContext(boolean newThread) {
 		context = new SQFContext(this, context, newThread);
@@ -224,6 +346,10 @@ public class Linter extends SQFParser {
 	 */
 	public void setPreprocessor(SQFPreprocessor preprocessor) {
 		this.preprocessor = preprocessor;
+		
+		// Tokens remember macro usages they were produced by
+		preprocessor.trackOrigins();
+		token_source.setOrigins(preprocessor);
 	}
 
 	/**
@@ -28,27 +28,30 @@ import cz.zipek.sqflint.output.TextOutput;
 import cz.zipek.sqflint.sqf.operators.CountOperator;
 import cz.zipek.sqflint.sqf.operators.ExitWithOperator;
 import cz.zipek.sqflint.sqf.operators.ForEachOperator;
-import cz.zipek.sqflint.sqf.operators.GenericOperator;
 import cz.zipek.sqflint.sqf.operators.IfOperator;
 import cz.zipek.sqflint.sqf.operators.Operator;
 import cz.zipek.sqflint.sqf.operators.ParamsOperator;
 import cz.zipek.sqflint.sqf.operators.PathLoader;
 import cz.zipek.sqflint.sqf.operators.ThenOperator;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 
 /**
- *
+ * Linter configuration.
+ * Options can be derived (see {@link #derive()}) to cheaply create per-file
+ * overlay over base configuration and frozen (see {@link #freeze()}) to
+ * create immutable snapshot, which can be safely shared between threads.
+ * 
  * @author Jan Zípek <jan at zipek.cz>
  */
 public final class Options {
@@ -63,16 +66,27 @@ public final class Options {
 	private boolean contextSeparationEnabled = true;
 	private String rootPath = null;
 	
-	private final Map<String, String> includePaths = new HashMap<>();
+	private Map<String, String> includePaths;
+	
+	private Set<String> ignoredVariables;
+	private Set<String> skippedVariables;
+	
+	private final Map<String, Operator> operators;
 	
-	private final Set<String> ignoredVariables;
-	private final Set<String> skippedVariables;
+	// Collections shared with options we were derived from, copied on first write
+	private boolean includePathsShared = false;
+	private boolean ignoredVariablesShared = false;
+	private boolean skippedVariablesShared = false;
 	
-	private final Map<String, Operator> operators = new HashMap<>();
+	private boolean frozen = false;
+	private List<Pattern> skippedPatterns;
+	private String fingerprint;
 
 	public Options() throws IOException {
+		includePaths = new HashMap<>();
 		skippedVariables = new HashSet<>();
 		ignoredVariables = new HashSet<>();
+		operators = new HashMap<>();
 		
 		ignoredVariables.addAll(Arrays.asList(new String[] {
 			"_this", "_x", "_foreachindex", "_exception",
@@ -97,101 +111,128 @@ public final class Options {
 	}
 	
 	/**
-	 * Loads commands list from resources.
+	 * Creates options derived from specified source.
+	 * Collections are shared with the source until they're modified,
+	 * operators are shared always, because they're never modified after
+	 * being loaded and loading them again is expensive.
 	 * 
-	 * @throws IOException 
+	 * @param source options to be derived from
 	 */
-	private void loadCommands() throws IOException {
-		// Binary commands
-		Pattern bre = Pattern.compile("(?i)b:([a-z0-9,]*) ([a-z0-9_]*) ([a-z0-9,]*)");
-		// Unary commands
-		Pattern ure = Pattern.compile("(?i)u:([a-z0-9_]*) ([a-z0-9,]*)");
-		// Noargs commands
-		Pattern nre = Pattern.compile("(?i)n:([a-z0-9_]*)");
+	private Options(Options source) {
+		outputFormatter = source.outputFormatter;
+		stopOnError = source.stopOnError;
+		skipWarnings = source.skipWarnings;
+		jsonOutput = source.jsonOutput;
+		outputVariables = source.outputVariables;
+		exitCodeEnabled = source.exitCodeEnabled;
+		warningAsError = source.warningAsError;
+		checkPaths = source.checkPaths;
+		contextSeparationEnabled = source.contextSeparationEnabled;
+		rootPath = source.rootPath;
 		
-		// Load commands list from jar file
-		InputStream in = getClass().getResourceAsStream("/res/commands.txt"); 
-		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		includePaths = source.includePaths;
+		ignoredVariables = source.ignoredVariables;
+		skippedVariables = source.skippedVariables;
+		includePathsShared = true;
+		ignoredVariablesShared = true;
+		skippedVariablesShared = true;
 		
-		// Read line by line
-		String line;
-		while((line = reader.readLine()) != null) {
-			String ident = null;
-			String[] left = null;
-			String[] right = null;
-			
-			// Try to match one if the command regexp
-			Matcher m = bre.matcher(line);
-			if (m.find()) {
-				ident = m.group(2).toLowerCase();
-				
-				left = m.group(1).split(",");
-				right = m.group(3).split(",");
-			}
-			
-			m = ure.matcher(line);
-			if (m.find()) {
-				ident = m.group(1).toLowerCase();
-				
-				right = m.group(2).split(",");
-			}
-			
-			m = nre.matcher(line);
-			if (m.find()) {
-				ident = m.group(1).toLowerCase();
-			}
-			
-			if (ident != null) {
-				if (!operators.containsKey(ident)) {
-					operators.put(ident, new GenericOperator(ident));
-				}
-				
-				Operator op = operators.get(ident);
-				if (op instanceof GenericOperator) {					
-					GenericOperator genop = (GenericOperator)op;
-					for(GenericOperator.Type ttype : convertToTypes(left)) {
-						genop.addLeft(ttype);
-					}
-					for(GenericOperator.Type ttype : convertToTypes(right)) {
-						genop.addRight(ttype);
-					}
-					
-					if (left == null) {
-						genop.allowLeftEmpty(true);
-					}
-					
-					if (right == null) {
-						genop.allowRightEmpty(true);
-					}
+		operators = source.operators;
+		
+		// Source can't modify shared collections anymore either
+		if (!source.frozen) {
+			source.includePathsShared = true;
+			source.ignoredVariablesShared = true;
+			source.skippedVariablesShared = true;
+		}
+	}
+	
+	/**
+	 * Creates new mutable options, which use these options as base.
+	 * This is cheap, collections are only copied when they're modified.
+	 * 
+	 * @return derived options
+	 */
+	public Options derive() {
+		return new Options(this);
+	}
+	
+	/**
+	 * Makes these options immutable. Any attempt to modify frozen options
+	 * will throw IllegalStateException.
+	 * 
+	 * @return this
+	 */
+	public Options freeze() {
+		if (!frozen) {
+			skippedPatterns = new ArrayList<>();
+			for (String skipped : skippedVariables) {
+				if (skipped.indexOf('*') >= 0) {
+					skippedPatterns.add(wildcardToPattern(skipped));
 				}
 			}
+			
+			frozen = true;
 		}
+		
+		return this;
 	}
 	
 	/**
-	 * Converts string type definitions to enums.
-	 * @param values
-	 * @return 
+	 * @return if these options are immutable
 	 */
-	private GenericOperator.Type[] convertToTypes(String[] values) {
-		if (values == null) {
-			return new GenericOperator.Type[0];
+	public boolean isFrozen() {
+		return frozen;
+	}
+	
+	/**
+	 * Builds string describing every option which affects lint results.
+	 * Options with same fingerprint will produce same results for same
+	 * input, which allows to use it as part of cache key.
+	 * Output formatter isn't part of the fingerprint.
+	 * 
+	 * @return fingerprint of these options
+	 */
+	public String fingerprint() {
+		if (fingerprint != null) {
+			return fingerprint;
 		}
 		
-		Set<GenericOperator.Type> types = new HashSet<>();
-		for(String tname : values) {
-			GenericOperator.Type ttype;
-			
-			try {
-				ttype = GenericOperator.Type.valueOf(tname.toUpperCase());
-			} catch(IllegalArgumentException e) {
-				ttype = GenericOperator.Type.ANY;
-			}
-			
-			types.add(ttype);
+		String result = new StringBuilder()
+			.append("stopOnError=").append(stopOnError)
+			.append(";skipWarnings=").append(skipWarnings)
+			.append(";outputVariables=").append(outputVariables)
+			.append(";exitCodeEnabled=").append(exitCodeEnabled)
+			.append(";warningAsError=").append(warningAsError)
+			.append(";checkPaths=").append(checkPaths)
+			.append(";contextSeparation=").append(contextSeparationEnabled)
+			.append(";rootPath=").append(rootPath)
+			.append(";includePaths=").append(new TreeMap<>(includePaths))
+			.append(";ignoredVariables=").append(new TreeSet<>(ignoredVariables))
+			.append(";skippedVariables=").append(new TreeSet<>(skippedVariables))
+			.toString();
+		
+		// Only frozen options can't change
+		if (frozen) {
+			fingerprint = result;
 		}
 		
-		return types.toArray(new GenericOperator.Type[0]);
+		return result;
+	}
+	
+	private void checkMutable() {
+		if (frozen) {
+			throw new IllegalStateException("Frozen options can't be modified.");
+		}
+	}
+	
+	/**
+	 * Loads commands list from resources (see {@link CommandTable}).
+	 * 
+	 * @throws IOException 
+	 */
+	private void loadCommands() throws IOException {
+		CommandTable.load(operators);
 	}
 
 	/**
@@ -205,6 +246,7 @@ public final class Options {
 	 * @param outputFormatter the outputFormatter to set
 	 */
 	public void setOutputFormatter(OutputFormatter outputFormatter) {
+		checkMutable();
 		this.outputFormatter = outputFormatter;
 	}
 
@@ -219,6 +261,7 @@ public final class Options {
 	 * @param stopOnError the stopOnError to set
 	 */
 	public void setStopOnError(boolean stopOnError) {
+		checkMutable();
 		this.stopOnError = stopOnError;
 	}
 
@@ -233,6 +276,7 @@ public final class Options {
 	 * @param skipWarnings the skipWarnings to set
 	 */
 	public void setSkipWarnings(boolean skipWarnings) {
+		checkMutable();
 		this.skipWarnings = skipWarnings;
 	}
 
@@ -247,6 +291,7 @@ public final class Options {
 	 * @param jsonOutput the jsonOutput to set
 	 */
 	public void setJsonOutput(boolean jsonOutput) {
+		checkMutable();
 		this.jsonOutput = jsonOutput;
 	}
 
@@ -261,6 +306,7 @@ public final class Options {
 	 * @param outputVariables the outputVariables to set
 	 */
 	public void setOutputVariables(boolean outputVariables) {
+		checkMutable();
 		this.outputVariables = outputVariables;
 	}
 
@@ -275,6 +321,7 @@ public final class Options {
 	 * @param exitCodeEnabled the exitCodeEnabled to set
 	 */
 	public void setExitCodeEnabled(boolean exitCodeEnabled) {
+		checkMutable();
 		this.exitCodeEnabled = exitCodeEnabled;
 	}
 
@@ -289,6 +336,7 @@ public final class Options {
 	 * @param warningAsError the warningAsError to set
 	 */
 	public void setWarningAsError(boolean warningAsError) {
+		checkMutable();
 		this.warningAsError = warningAsError;
 	}
 
@@ -303,6 +351,7 @@ public final class Options {
 	 * @param checkPaths the checkPaths to set
 	 */
 	public void setCheckPaths(boolean checkPaths) {
+		checkMutable();
 		this.checkPaths = checkPaths;
 	}
 
@@ -317,6 +366,7 @@ public final class Options {
 	 * @param rootPath the rootPath to set
 	 */
 	public void setRootPath(String rootPath) {
+		checkMutable();
 		this.rootPath = rootPath;
 	}
 
@@ -324,6 +374,15 @@ public final class Options {
 	 * @return the ignoredVariables
 	 */
 	public Set<String> getIgnoredVariables() {
+		if (frozen) {
+			return Collections.unmodifiableSet(ignoredVariables);
+		}
+		
+		if (ignoredVariablesShared) {
+			ignoredVariables = new HashSet<>(ignoredVariables);
+			ignoredVariablesShared = false;
+		}
+		
 		return ignoredVariables;
 	}
 
@@ -331,9 +390,28 @@ public final class Options {
 	 * @return the skippedVariables
 	 */
 	public Set<String> getSkippedVariables() {
+		if (frozen) {
+			return Collections.unmodifiableSet(skippedVariables);
+		}
+		
+		if (skippedVariablesShared) {
+			skippedVariables = new HashSet<>(skippedVariables);
+			skippedVariablesShared = false;
+		}
+		
 		return skippedVariables;
 	}
 
+	/**
+	 * Removes all skipped variables.
+	 */
+	public void clearSkippedVariables() {
+		checkMutable();
+		
+		skippedVariables = new HashSet<>();
+		skippedVariablesShared = false;
+	}
+
 	/**
 	 * @return the operators
 	 */
@@ -346,15 +424,37 @@ public final class Options {
 	 * @param vars 
 	 */
 	public void addIgnoredVariables(String[] vars) {
+		checkMutable();
+		
+		Set<String> skipped = getSkippedVariables();
 		for(String var : vars) {
-			skippedVariables.add(var.toLowerCase());
+			skipped.add(var.toLowerCase());
 		}
 	}
 	
 	public Map<String, String> getIncludePaths() {
+		if (frozen) {
+			return Collections.unmodifiableMap(includePaths);
+		}
+		
+		if (includePathsShared) {
+			includePaths = new HashMap<>(includePaths);
+			includePathsShared = false;
+		}
+		
 		return this.includePaths;
 	}
 
+	/**
+	 * Removes all include paths.
+	 */
+	public void clearIncludePaths() {
+		checkMutable();
+		
+		includePaths = new HashMap<>();
+		includePathsShared = false;
+	}
+
 	/**
 	 * @return the contextSeparationEnabled
 	 */
@@ -366,31 +466,53 @@ public final class Options {
 	 * @param contextSeparationEnabled the contextSeparationEnabled to set
 	 */
 	public void setContextSeparationEnabled(boolean contextSeparationEnabled) {
+		checkMutable();
 		this.contextSeparationEnabled = contextSeparationEnabled;
 	}
 	
 	public boolean isVariableSkipped(String name) {
-		if (getIgnoredVariables().contains(name)) {
+		if (ignoredVariables.contains(name)) {
 			return true;
 		}
 		
-		for (String skipped : getSkippedVariables()) {
-			if (skipped.indexOf('*') < 0) {
-				if (skipped.equals(name)) {
+		// Frozen options have wildcards precompiled
+		if (frozen) {
+			if (skippedVariables.contains(name)) {
+				return true;
+			}
+			
+			for (Pattern pattern : skippedPatterns) {
+				if (pattern.matcher(name).matches()) {
 					return true;
 				}
-			} else {
-				String[] values = (String[])Pattern.compile("\\*")
-					.splitAsStream(skipped)
-					.map(v -> Pattern.quote(v))
-					.toArray();
-				String matcher = String.join("(.*)", values);
-				if (Pattern.compile(matcher).matcher(name).matches()) {
+			}
+			
+			return false;
+		}
+		
+		for (String skipped : skippedVariables) {
+			if (skipped.indexOf('*') < 0) {
+				if (skipped.equals(name)) {
 					return true;
 				}
+			} else if (wildcardToPattern(skipped).matcher(name).matches()) {
+				return true;
 			}
 		}
 		
 		return false;
 	}
+	
+	/**
+	 * Converts skipped variable with wildcards to regex pattern.
+	 * @param skipped
+	 * @return pattern matching the wildcard
+	 */
+	private static Pattern wildcardToPattern(String skipped) {
+		String[] values = skipped.split("\\*", -1);
+		for (int i = 0; i < values.length; i++) {
+			values[i] = Pattern.quote(values[i]);
+		}
+		return Pattern.compile(String.join("(.*)", values));
+	}
 }
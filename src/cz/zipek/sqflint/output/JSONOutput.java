@@ -4,6 +4,7 @@ import cz.zipek.sqflint.linter.Linter;
 import cz.zipek.sqflint.linter.SQFVariable;
 import cz.zipek.sqflint.parser.Token;
 import cz.zipek.sqflint.preprocessor.SQFMacro;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -16,7 +17,20 @@ import org.json.JSONObject;
  *
  * @author Jan Zípek <jan at zipek.cz>
  */
-public class JSONOutput implements OutputFormatter {	
+public class JSONOutput implements OutputFormatter {
+	private final PrintStream output;
+	
+	public JSONOutput() {
+		this(System.out);
+	}
+	
+	/**
+	 * @param output stream receiving the messages
+	 */
+	public JSONOutput(PrintStream output) {
+		this.output = output;
+	}
+	
 	protected List<JSONObject> build(Linter linter) {
 		List<JSONObject> result = new ArrayList<>();
 		
@@ -31,6 +45,10 @@ public class JSONOutput implements OutputFormatter {
 				JSONObject error = getRange(pos);
 				error.put("type", "error");
 				error.put("message", e.getJSONMessage());
+				
+				if (e.getOriginFilename() != null) {
+					error.put("filename", e.getOriginFilename());
+				}
 
 				result.add(error);
 			} catch (JSONException ex) {
@@ -152,7 +170,7 @@ public class JSONOutput implements OutputFormatter {
 	@Override
 	public void print(Linter linter) {		
 		build(linter).stream().forEach((item) -> {
-			System.out.println(item.toString());
+			output.println(item.toString());
 		});
 	}
 	
@@ -163,7 +181,7 @@ public class JSONOutput implements OutputFormatter {
 	 * @return info about token position
 	 * @throws JSONException 
 	 */
-	private JSONObject getRange(Token token) throws JSONException {
+	protected static JSONObject getRange(Token token) throws JSONException {
 		JSONObject range = new JSONObject();
 		
 		range.put("line", new JSONArray(new int[] {
@@ -24,9 +24,13 @@
 package cz.zipek.sqflint.output;
 
 import cz.zipek.sqflint.linter.Linter;
+import cz.zipek.sqflint.parser.Token;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.json.JSONStringer;
 
 /**
@@ -35,26 +39,91 @@ import org.json.JSONStringer;
  */
 public class ServerOutput extends JSONOutput {
 	private final String filename;
+	private final Object id;
+	private final Consumer<String> output;
+	
+	private JSONArray messages;
 	
 	public ServerOutput(String filename) {
+		this(filename, null, (line) -> {
+			System.out.println(line);
+			System.out.flush();
+		});
+	}
+	
+	/**
+	 * @param filename linted file
+	 * @param id request id supplied by client, null if there wasn't any
+	 * @param output receiver of the response line, null to only collect messages
+	 */
+	public ServerOutput(String filename, Object id, Consumer<String> output) {
 		this.filename = filename;
+		this.id = id;
+		this.output = output;
 	}
 	
 	@Override
 	public void print(Linter linter) {
 		try {
-			System.out.println(
-				new JSONStringer()
-					.object()
-						.key("file")
-						.value(this.filename)
-						.key("messages")
-						.value(build(linter))
-					.endObject()
-			);
-			System.out.flush();
+			messages = new JSONArray(build(linter));
+			if (output != null) {
+				output.accept(response(this.id, this.filename, messages));
+			}
 		} catch (JSONException ex) {
 			Logger.getLogger(ServerOutput.class.getName()).log(Level.SEVERE, null, ex);
 		}
 	}
+	
+	/**
+	 * Builds server response line.
+	 * 
+	 * @param id request id, null if there wasn't any
+	 * @param filename linted file
+	 * @param messages lint messages
+	 * @return response line
+	 * @throws JSONException 
+	 */
+	public static String response(Object id, String filename, JSONArray messages) throws JSONException {
+		JSONStringer result = new JSONStringer();
+		result.object();
+
+		if (id != null) {
+			result.key("id").value(id);
+		}
+
+		result
+			.key("file")
+			.value(filename)
+			.key("messages")
+			.value(messages)
+			.endObject();
+		
+		return result.toString();
+	}
+
+	/**
+	 * Builds messages of file which couldn't be linted at all.
+	 * 
+	 * @param message reason of the failure
+	 * @return messages containing single error at start of the file
+	 * @throws JSONException 
+	 */
+	public static JSONArray failure(String message) throws JSONException {
+		Token start = new Token();
+		start.beginLine = start.endLine = 1;
+		start.beginColumn = start.endColumn = 1;
+		
+		JSONObject error = getRange(start);
+		error.put("type", "error");
+		error.put("message", message);
+		
+		return new JSONArray().put(error);
+	}
+
+	/**
+	 * @return messages built by last print, null if nothing was printed yet
+	 */
+	public JSONArray getMessages() {
+		return messages;
+	}
 }
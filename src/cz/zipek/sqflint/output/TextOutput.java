@@ -1,27 +1,40 @@
 package cz.zipek.sqflint.output;
 
 import cz.zipek.sqflint.linter.Linter;
+import java.io.PrintStream;
 
 /**
  *
  * @author Jan Zípek <jan at zipek.cz>
  */
 public class TextOutput implements OutputFormatter {
+	private final PrintStream output;
+	
+	public TextOutput() {
+		this(System.err);
+	}
+	
+	/**
+	 * @param output stream receiving the messages
+	 */
+	public TextOutput(PrintStream output) {
+		this.output = output;
+	}
 	
 	@Override
 	public void print(Linter linter) {		
 		if (linter.getOptions().isOutputVariables()) {
-			System.err.println("You can't output variables info in text mode.");
+			output.println("You can't output variables info in text mode.");
 		}
 		
 		// Print errors
 		linter.getErrors().stream().forEach((e) -> {
-			System.err.println(e.getMessage());
+			output.println(e.getMessage());
 		});
 		
 		// Print warnings
 		linter.getWarnings().stream().forEach((e) -> {
-			System.err.println(e.toString());
+			output.println(e.toString());
 		});
 	}
 	
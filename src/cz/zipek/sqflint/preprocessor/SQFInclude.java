@@ -23,6 +23,8 @@
  */
 package cz.zipek.sqflint.preprocessor;
 
+import java.nio.file.Path;
+
 /**
  *
  * @author Jan Zípek <jan at zipek.cz>
@@ -31,11 +33,17 @@ public class SQFInclude {
 	private final String file;
 	private final String source;
 	private final String expandedFile;
+	private final Path path;
 	
 	public SQFInclude(String file, String expandedFile, String source) {
+		this(file, expandedFile, source, null);
+	}
+	
+	public SQFInclude(String file, String expandedFile, String source, Path path) {
 		this.file = file;
 		this.source = source;
 		this.expandedFile = expandedFile;
+		this.path = path;
 	}
 
 	/**
@@ -58,4 +66,11 @@ public class SQFInclude {
 	public String getExpandedFile() {
 		return expandedFile;
 	}
+
+	/**
+	 * @return resolved path to included file (file may not exist)
+	 */
+	public Path getPath() {
+		return path;
+	}
 }
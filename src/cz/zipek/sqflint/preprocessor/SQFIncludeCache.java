@@ -0,0 +1,402 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.preprocessor;
+
+import cz.zipek.sqflint.linter.Options;
+import cz.zipek.sqflint.linter.Warning;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Process-wide cache of preprocessed include files.
+ * Including file only affects macros, includes and warnings of the
+ * preprocessor, so this is what is cached for every header. Entries are
+ * keyed by resolved path and options affecting the include and they're only
+ * used when modification time and size of the file and of every file it
+ * includes didn't change.
+ * Result of a file using conditional directives depends on macros defined by
+ * including file, so several variants of one file can be cached, each valid
+ * for including files with the same macros tested by the conditions.
+ * Cache is bounded by approximate number of characters held by all entries.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class SQFIncludeCache {
+	private static final SQFIncludeCache shared = new SQFIncludeCache(32 * 1024 * 1024);
+	
+	private final long maxWeight;
+	private long weight = 0;
+	
+	private final Map<String, List<Entry>> entries = new LinkedHashMap<>(16, 0.75f, true);
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * @param maxWeight maximum number of characters held by cached entries
+	 */
+	public SQFIncludeCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+	
+	/**
+	 * @return cache shared by all preprocessors in this process
+	 */
+	public static SQFIncludeCache getShared() {
+		return shared;
+	}
+	
+	/**
+	 * Loads cached result of specified include file.
+	 * 
+	 * @param path resolved path to included file
+	 * @param options options used by preprocessor
+	 * @param defined tells if macro is defined in including file
+	 * @return cached entry or null if there isn't up-to-date entry
+	 */
+	public Entry get(Path path, Options options, Predicate<String> defined) {
+		String key = key(path, options);
+		String stamp = stamp(path);
+		List<Entry> variants;
+		
+		synchronized (this) {
+			variants = entries.get(key);
+			
+			if (variants != null && !variants.get(0).stamp.equals(stamp)) {
+				entries.remove(key);
+				variants.forEach((variant) -> weight -= variant.weight);
+				variants = null;
+			}
+			
+			if (variants != null) {
+				variants = new ArrayList<>(variants);
+			}
+		}
+		
+		Entry entry = null;
+		if (variants != null) {
+			for (Entry variant : variants) {
+				if (!variant.isCurrent()) {
+					// Some nested include changed since the variant was processed
+					remove(key, variant);
+				} else if (entry == null && variant.matches(defined)) {
+					entry = variant;
+				}
+			}
+		}
+		
+		if (entry == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		
+		return entry;
+	}
+	
+	/**
+	 * Saves result of included file.
+	 * 
+	 * @param path resolved path to included file
+	 * @param options options used by preprocessor
+	 * @param entry 
+	 */
+	public synchronized void put(Path path, Options options, Entry entry) {
+		if (entry.weight > maxWeight) {
+			return;
+		}
+		
+		List<Entry> variants = entries.computeIfAbsent(key(path, options), (key) -> new ArrayList<>());
+		
+		// Variants of older version of the file are useless
+		if (!variants.isEmpty() && !variants.get(0).stamp.equals(entry.stamp)) {
+			variants.forEach((variant) -> weight -= variant.weight);
+			variants.clear();
+		}
+		
+		Iterator<Entry> existing = variants.iterator();
+		while (existing.hasNext()) {
+			Entry variant = existing.next();
+			if (variant.conditions.equals(entry.conditions)) {
+				weight -= variant.weight;
+				existing.remove();
+			}
+		}
+		
+		variants.add(entry);
+		weight += entry.weight;
+		
+		// Remove least recently used entries until we fit
+		Iterator<List<Entry>> iterator = entries.values().iterator();
+		while (weight > maxWeight && iterator.hasNext()) {
+			iterator.next().forEach((variant) -> weight -= variant.weight);
+			iterator.remove();
+		}
+	}
+	
+	/**
+	 * Removes every variant of included files which is the specified file
+	 * or includes it, directly or through other files.
+	 * 
+	 * @param file changed file
+	 * @return number of removed files
+	 */
+	public synchronized int invalidate(Path file) {
+		Path normalized = file.toAbsolutePath().normalize();
+		String prefix = normalized.toString() + "\0";
+		int removed = 0;
+		
+		Iterator<Map.Entry<String, List<Entry>>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, List<Entry>> item = iterator.next();
+			boolean dependent = item.getKey().startsWith(prefix);
+			
+			for (Entry variant : item.getValue()) {
+				dependent = dependent || variant.dependencies.containsKey(normalized);
+			}
+			
+			if (dependent) {
+				item.getValue().forEach((variant) -> weight -= variant.weight);
+				iterator.remove();
+				removed++;
+			}
+		}
+		
+		return removed;
+	}
+	
+	/**
+	 * Removes single outdated variant.
+	 */
+	private synchronized void remove(String key, Entry entry) {
+		List<Entry> variants = entries.get(key);
+		if (variants != null && variants.remove(entry)) {
+			weight -= entry.weight;
+			if (variants.isEmpty()) {
+				entries.remove(key);
+			}
+		}
+	}
+	
+	/**
+	 * Removes all cached entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+	
+	/**
+	 * @return number of cached include files, variants are not counted
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * @return approximate number of characters held by cache
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	/**
+	 * @return number of includes loaded from cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of includes which had to be processed
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Builds cache key. Only options which affect processing of include
+	 * files are used, so headers can be shared between different roots.
+	 */
+	private String key(Path path, Options options) {
+		return path.toAbsolutePath().normalize().toString() +
+			"\0" + new TreeMap<>(options.getIncludePaths()) +
+			"\0" + options.isCheckPaths();
+	}
+	
+	/**
+	 * Builds stamp used to detect file changes.
+	 * 
+	 * @param path
+	 * @return modification time and size of the file
+	 */
+	public static String stamp(Path path) {
+		try {
+			return Files.getLastModifiedTime(path).toMillis() + ":" + Files.size(path);
+		} catch (IOException ex) {
+			return "missing";
+		}
+	}
+	
+	/**
+	 * Result of processing single include file. Contents are shared between
+	 * preprocessors and must not be modified.
+	 */
+	public static class Entry {
+		private final String stamp;
+		private final Map<Path, String> dependencies;
+		private final List<SQFMacro> macros;
+		private final List<SQFInclude> includes;
+		private final List<Warning> warnings;
+		private final Map<String, Boolean> conditions;
+		private final Set<String> undefined;
+		private final Map<String, SQFMacro> environment;
+		private final long weight;
+		
+		/**
+		 * @param stamp see {@link SQFIncludeCache#stamp(Path)}, loaded before processing the file
+		 * @param dependencies stamps of all files included by file, directly or through other files
+		 * @param macros macros defined by file, in order of definition
+		 * @param includes files included by file
+		 * @param warnings warnings produced by file
+		 * @param conditions macros of including file tested by file and if they were defined
+		 * @param undefined macros of including file undefined by file
+		 */
+		public Entry(String stamp, Map<Path, String> dependencies, List<SQFMacro> macros, List<SQFInclude> includes, List<Warning> warnings, Map<String, Boolean> conditions, Set<String> undefined) {
+			this.stamp = stamp;
+			this.dependencies = Collections.unmodifiableMap(dependencies);
+			this.macros = Collections.unmodifiableList(macros);
+			this.includes = Collections.unmodifiableList(includes);
+			this.warnings = Collections.unmodifiableList(warnings);
+			this.conditions = Collections.unmodifiableMap(conditions);
+			this.undefined = Collections.unmodifiableSet(undefined);
+			
+			Map<String, SQFMacro> byName = new HashMap<>();
+			macros.forEach((macro) -> byName.put(macro.getName(), macro));
+			this.environment = Collections.unmodifiableMap(byName);
+			
+			long total = 0;
+			for (SQFMacro macro : macros) {
+				total += 64 + macro.getName().length();
+				for (SQFMacroDefinition definition : macro.getDefinitions()) {
+					total += 64 + (definition.getValue() != null ? definition.getValue().length() : 0);
+				}
+			}
+			this.weight = total + 128 * (includes.size() + warnings.size() + dependencies.size()) + 64 * (conditions.size() + undefined.size());
+		}
+		
+		/**
+		 * @return if none of the files included by file changed since it was processed
+		 */
+		public boolean isCurrent() {
+			for (Map.Entry<Path, String> dependency : dependencies.entrySet()) {
+				if (!stamp(dependency.getKey()).equals(dependency.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * @param defined tells if macro is defined in including file
+		 * @return if this result is valid for the including file
+		 */
+		public boolean matches(Predicate<String> defined) {
+			for (Map.Entry<String, Boolean> condition : conditions.entrySet()) {
+				if (defined.test(condition.getKey()) != condition.getValue()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return modification time and size of the file when it was processed
+		 */
+		public String getStamp() {
+			return stamp;
+		}
+
+		/**
+		 * @return stamps of all files included by file, by their normalized absolute path
+		 */
+		public Map<Path, String> getDependencies() {
+			return dependencies;
+		}
+
+		/**
+		 * @return macros defined by file, in order of definition
+		 */
+		public List<SQFMacro> getMacros() {
+			return macros;
+		}
+
+		/**
+		 * @return macros defined by file by their name
+		 */
+		public Map<String, SQFMacro> getEnvironment() {
+			return environment;
+		}
+
+		/**
+		 * @return files included by file
+		 */
+		public List<SQFInclude> getIncludes() {
+			return includes;
+		}
+
+		/**
+		 * @return warnings produced by file
+		 */
+		public List<Warning> getWarnings() {
+			return warnings;
+		}
+
+		/**
+		 * @return macros of including file tested by file and if they were defined
+		 */
+		public Map<String, Boolean> getConditions() {
+			return conditions;
+		}
+
+		/**
+		 * @return macros of including file undefined by file
+		 */
+		public Set<String> getUndefined() {
+			return undefined;
+		}
+	}
+}
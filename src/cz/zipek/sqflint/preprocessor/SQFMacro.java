@@ -46,7 +46,12 @@ public class SQFMacro {
 	}
 
 	public void addDefinition(String filename, Token token, String value) {
-		definitions.add(new SQFMacroDefinition(filename, token, value));
+		definitions.add(new SQFMacroDefinition(
+			filename,
+			token,
+			value,
+			arguments != null ? new SQFMacroTemplate(value, arguments) : null
+		));
 	}
 	
 	/**
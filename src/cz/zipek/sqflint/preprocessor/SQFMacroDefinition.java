@@ -33,11 +33,17 @@ public class SQFMacroDefinition {
 	private final String filename;
 	private final Token token;
 	private final String value;
+	private final SQFMacroTemplate template;
 
 	public SQFMacroDefinition(String filename, Token token, String value) {
+		this(filename, token, value, null);
+	}
+	
+	public SQFMacroDefinition(String filename, Token token, String value, SQFMacroTemplate template) {
 		this.filename = filename;
 		this.token = token;
 		this.value = value;
+		this.template = template;
 	}
 
 	/**
@@ -54,6 +60,13 @@ public class SQFMacroDefinition {
 		return value;
 	}
 
+	/**
+	 * @return compiled value of argumented macro, null for macro without arguments
+	 */
+	public SQFMacroTemplate getTemplate() {
+		return template;
+	}
+
 	/**
 	 * @return the filename
 	 */
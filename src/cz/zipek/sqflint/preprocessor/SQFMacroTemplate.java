@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.preprocessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body of argumented macro compiled into literal segments and argument slots,
+ * so expansion doesn't have to search the body again.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class SQFMacroTemplate {
+	private static final byte LITERAL = 0;
+	private static final byte ARGUMENT = 1;
+	private static final byte STRINGIFY = 2;
+	
+	private final byte[] kinds;
+	private final String[] literals;
+	private final int[] slots;
+	// Arguments used by at least one slot
+	private final boolean[] used;
+	
+	/**
+	 * @param value macro body, can be null
+	 * @param arguments comma separated argument names
+	 */
+	public SQFMacroTemplate(String value, String arguments) {
+		List<String> names = new ArrayList<>();
+		for (String name : arguments.split(",")) {
+			names.add(name.trim());
+		}
+		
+		List<Byte> kindList = new ArrayList<>();
+		List<String> literalList = new ArrayList<>();
+		List<Integer> slotList = new ArrayList<>();
+		
+		String body = value != null ? value : "";
+		StringBuilder literal = new StringBuilder();
+		int index = 0;
+		
+		while (index < body.length()) {
+			char c = body.charAt(index);
+			
+			if (c == '"' || c == '\'') {
+				// Arguments aren't replaced inside strings
+				int end = index + 1;
+				while (end < body.length() && body.charAt(end) != c) {
+					end++;
+				}
+				end = Math.min(end + 1, body.length());
+				literal.append(body, index, end);
+				index = end;
+			} else if (c == '#' && index + 1 < body.length() && body.charAt(index + 1) == '#') {
+				// Token pasting, segments are simply joined
+				index += 2;
+			} else if (SQFPreprocessor.isIdentifierPart(c) || (c == '#' && index + 1 < body.length() && SQFPreprocessor.isIdentifierStart(body.charAt(index + 1)))) {
+				int start = c == '#' ? index + 1 : index;
+				int end = SQFPreprocessor.identifierEnd(body, start);
+				int slot = SQFPreprocessor.isIdentifierStart(body.charAt(start)) ? names.indexOf(body.substring(start, end)) : -1;
+				
+				if (slot >= 0) {
+					if (literal.length() > 0) {
+						kindList.add(LITERAL);
+						literalList.add(literal.toString());
+						slotList.add(-1);
+						literal.setLength(0);
+					}
+					kindList.add(c == '#' ? STRINGIFY : ARGUMENT);
+					literalList.add(null);
+					slotList.add(slot);
+				} else {
+					literal.append(body, index, end);
+				}
+				index = end;
+			} else {
+				literal.append(c);
+				index++;
+			}
+		}
+		
+		if (literal.length() > 0) {
+			kindList.add(LITERAL);
+			literalList.add(literal.toString());
+			slotList.add(-1);
+		}
+		
+		kinds = new byte[kindList.size()];
+		slots = new int[slotList.size()];
+		for (int i = 0; i < kinds.length; i++) {
+			kinds[i] = kindList.get(i);
+			slots[i] = slotList.get(i);
+		}
+		literals = literalList.toArray(new String[literalList.size()]);
+		
+		used = new boolean[names.size()];
+		for (int slot : slots) {
+			if (slot >= 0) {
+				used[slot] = true;
+			}
+		}
+	}
+	
+	/**
+	 * Appends expanded macro to output.
+	 * Missing arguments are replaced with empty string.
+	 * 
+	 * @param arguments values of arguments
+	 * @param output
+	 */
+	public void expand(List<String> arguments, StringBuilder output) {
+		for (int i = 0; i < kinds.length; i++) {
+			if (kinds[i] == LITERAL) {
+				output.append(literals[i]);
+			} else {
+				String argument = slots[i] < arguments.size() ? arguments.get(slots[i]) : "";
+				if (kinds[i] == STRINGIFY) {
+					output.append('"').append(argument).append('"');
+				} else {
+					output.append(argument);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @param argument index of argument
+	 * @return if the argument appears anywhere in the body
+	 */
+	public boolean isUsed(int argument) {
+		return argument < used.length && used[argument];
+	}
+}
@@ -23,290 +23,886 @@
  */
 package cz.zipek.sqflint.preprocessor;
 
-import cz.zipek.sqflint.SQFLint;
 import cz.zipek.sqflint.linter.Linter;
 import cz.zipek.sqflint.linter.Options;
 import cz.zipek.sqflint.linter.Warning;
 import cz.zipek.sqflint.parser.Token;
-import java.io.BufferedReader;
+import cz.zipek.sqflint.parser.TokenOrigins;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 /**
  *
  * @author Jan Zípek <jan at zipek.cz>
  */
-public class SQFPreprocessor {
-	private final Map<String, SQFMacro> macros = new HashMap<>();
+public class SQFPreprocessor implements TokenOrigins {
+	// Limits of single line expansion, so macros growing exponentially can't run forever
+	static final int MAX_REPLACEMENTS = 100000;
+	static final int MAX_GROWTH = 1 << 20;
+	// Number of remembered macro expansions
+	static final int MAX_EXPANSIONS = 4096;
+	// Number of lines arguments of single macro usage can span
+	static final int MAX_ARGUMENT_LINES = 256;
+	
+	private Map<String, SQFMacro> macros = new HashMap<>();
+	// Macros of cached include result used until they're changed
+	private Map<String, SQFMacro> shared = null;
 	private final List<SQFInclude> includes = new ArrayList<>();
-	private final List<SQFMacro> sortedMacros = new ArrayList<>();
+	private final List<SQFMacro> definedMacros = new ArrayList<>();
+	// Stamps of every file included by this file, directly or through other files
+	private final Map<Path, String> dependencies = new HashMap<>();
 	
 	private final List<Warning> warnings = new ArrayList<>();
 	
+	// Active state of every open conditional block
+	private final List<Boolean> branches = new ArrayList<>();
+	// If some branch of every open conditional block was already used
+	private final List<Boolean> taken = new ArrayList<>();
+	// Macros undefined by this file
+	private final Set<String> undefined = new HashSet<>();
+	// Macros of including file tested by this file
+	private final Map<String, Boolean> conditions = new HashMap<>();
+	
 	private final Options options;
+	private final SQFIncludeCache includeCache;
+	
+	private SQFPreprocessor parent;
+	// Resolved path of this file when it's included
+	private Path file;
+	// Results of files already included during this run
+	private Map<Path, List<SQFIncludeCache.Entry>> included = new HashMap<>();
+	// Set when some include was skipped because of include cycle
+	private boolean cyclic = false;
+	
+	// Fully expanded usages of macros, valid until any macro changes
+	private final Map<Map.Entry<SQFMacroDefinition, List<String>>, String> expansions = new LinkedHashMap<Map.Entry<SQFMacroDefinition, List<String>>, String>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Map.Entry<SQFMacroDefinition, List<String>>, String> eldest) {
+			return size() > MAX_EXPANSIONS;
+		}
+	};
+	// Fully expanded macro arguments, valid until any macro changes
+	private final Map<String, String> expandedArguments = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_EXPANSIONS;
+		}
+	};
+	// If value of macro uses other macros, so its expansion is worth remembering
+	private final Map<String, Boolean> nesting = new HashMap<>();
+	// Depth of expansions done outside of processed line
+	private int detached = 0;
+	// Set when last expansion depends on text following it
+	private boolean open = false;
+	// End of text inserted by last macro replacement
+	private int replacedEnd = 0;
+	
+	// Macro usages in result not yet asked for by parser, null when they're not tracked
+	private Deque<Origin> origins = null;
+	
+	private Exception failure;
+	private long time = 0;
 	
 	private int readUntilIndex;
 	
 	public SQFPreprocessor(Options options) {
+		this(options, SQFIncludeCache.getShared());
+	}
+	
+	/**
+	 * @param options
+	 * @param includeCache cache of processed include files, null disables caching
+	 */
+	public SQFPreprocessor(Options options, SQFIncludeCache includeCache) {
 		this.options = options;
+		this.includeCache = includeCache;
 	}
 	
 	public String process(InputStream stream, String source, boolean include_filename) throws Exception {
-		return process(new BufferedReader(new InputStreamReader(stream)).lines().collect(Collectors.joining("\n")), source, include_filename);
+		return process(new InputStreamReader(stream), source, Paths.get(source).toAbsolutePath().getParent(), include_filename);
 	}
 	
-	
 	public String process(String input, String source, boolean include_filename) throws Exception {
-		Path root = Paths.get(source).toAbsolutePath().getParent();
+		return process(input, source, Paths.get(source).toAbsolutePath().getParent(), include_filename);
+	}
+	
+	public String process(String input, String source, Path root, boolean include_filename) throws Exception {
+		return process(new StringReader(input), source, root, include_filename);
+	}
+	
+	/**
+	 * @param input contents of processed file
+	 * @param source name of processed file used in results
+	 * @param root directory relative includes are resolved against
+	 * @param include_filename if results should contain file name
+	 * @return preprocessed contents
+	 * @throws Exception 
+	 */
+	public String process(Reader input, String source, Path root, boolean include_filename) throws Exception {
+		StringBuilder result = new StringBuilder();
+		char[] chunk = new char[8192];
 		
-		// Fixes escaped newlines
-		int index = 0;
-		while (index + 2 < input.length()) {
-			if (input.substring(index, index + 2).equals("\\\n")) {
-				int lines = 0;
-				int end = index;
-				while (end < input.length()) {
-					if (end < input.length() - 1 && input.substring(end, end + 2).equals("\\\n")) {
-						lines++;
-						end += 2;
+		try (Reader output = reader(input, source, root, include_filename)) {
+			int read;
+			while ((read = output.read(chunk)) >= 0) {
+				result.append(chunk, 0, read);
+			}
+		} catch (IOException ex) {
+			throw failure != null ? failure : ex;
+		}
+		
+		return result.toString();
+	}
+	
+	public Reader reader(Reader input, String source, boolean include_filename) {
+		return reader(input, source, Paths.get(source).toAbsolutePath().getParent(), include_filename);
+	}
+	
+	/**
+	 * Creates reader of preprocessed contents. Input is processed line by
+	 * line as the result is read, so the whole file is never held in memory.
+	 * Macros, includes and warnings are complete once the reader reaches its end.
+	 * 
+	 * @param input contents of processed file
+	 * @param source name of processed file used in results
+	 * @param root directory relative includes are resolved against
+	 * @param include_filename if results should contain file name
+	 * @return preprocessed contents
+	 */
+	public Reader reader(Reader input, String source, Path root, boolean include_filename) {
+		return new Output(input, source, root, include_filename);
+	}
+	
+	/**
+	 * Parses preprocessor directive.
+	 * 
+	 * @param lineUpdated normalized directive line
+	 * @param lineIndex zero based index of the line
+	 * @param source name of processed file used in results
+	 * @param root directory relative includes are resolved against
+	 * @param include_filename if results should contain file name
+	 * @throws Exception 
+	 */
+	private void processDirective(String lineUpdated, int lineIndex, String source, Path root, boolean include_filename) throws Exception {
+		String word = readUntil(lineUpdated, 1, ' ', false, false);
+		String values = readUntil(lineUpdated, 2 + word.length(), '\n', true, false);
+		String name = readUntil(values.trim(), 0, ' ', false, false);
+		
+		switch(word.toLowerCase()) {
+			case "ifdef":
+				openBranch(isActive() && isDefined(name, true));
+				return;
+			case "ifndef":
+				openBranch(isActive() && !isDefined(name, true));
+				return;
+			case "if":
+				openBranch(isActive() && isTrue(values));
+				return;
+			case "elif":
+				if (!branches.isEmpty()) {
+					int last = branches.size() - 1;
+					boolean enclosing = last == 0 || branches.get(last - 1);
+					branches.set(last, enclosing && !taken.get(last) && isTrue(values));
+					taken.set(last, taken.get(last) || branches.get(last));
+				}
+				return;
+			case "else":
+				if (!branches.isEmpty()) {
+					int last = branches.size() - 1;
+					boolean enclosing = last == 0 || branches.get(last - 1);
+					branches.set(last, enclosing && !taken.get(last));
+					taken.set(last, true);
+				}
+				return;
+			case "endif":
+				if (!branches.isEmpty()) {
+					branches.remove(branches.size() - 1);
+					taken.remove(taken.size() - 1);
+				}
+				return;
+		}
+		
+		// Other directives are ignored in inactive blocks
+		if (!isActive()) {
+			return;
+		}
+
+		switch(word.toLowerCase()) {
+			case "define":
+				String ident = readUntil(values, 0, new char[] { ' ', '\t' }, true, true);
+				String value = null;
+				String arguments = null;
+
+				// Only load value if there is any
+				if (values.length() > ident.length() + 1) {
+					value = values.substring(ident.length() + 1).trim();
+				}
+
+				// Parse argumented macro
+				if (ident.indexOf('(') >= 0) {
+					arguments = ident.substring(ident.indexOf('(') + 1);
+					if (arguments.indexOf(')') >= 0) {
+						arguments = arguments.substring(0, arguments.indexOf(')'));
 					}
-					if (input.charAt(end) == '\n') {
-						break;
+					ident = ident.substring(0, ident.indexOf('('));
+				}
+
+				Token token = new Token(Linter.STRING_LITERAL);
+				token.beginLine = lineIndex + 1;
+				token.endLine = lineIndex + 1;
+				token.beginColumn = 1;
+				token.endColumn = values.length() + 1;
+
+				if (!macros.containsKey(ident)) {
+					modifiableMacros().put(ident, new SQFMacro(ident, arguments, source, lineIndex));
+					definedMacros.add(macros.get(ident));
+					undefined.remove(ident);
+				}
+
+				modifiableMacro(ident).addDefinition(
+					include_filename ? source : null,
+					token,
+					value
+				);
+				invalidate();
+
+				break;
+			case "include":
+				values = readUntil(lineUpdated, 2 + word.length(), '\n', false, false);
+				String filename = values.trim();
+				if (filename.length() > 0) {
+					String originalPath = filename.substring(1, filename.length() - 1);
+					String actualPath = resolvePath(originalPath).replaceAll("\\\\", "/");							
+					Path path = root.resolve(actualPath);
+
+					getIncludes().add(
+						new SQFInclude(originalPath, actualPath, source, path)
+					);
+
+					Path file = path.toAbsolutePath().normalize();
+					String cycle = findCycle(file);
+					
+					if (cycle != null) {
+						// Result depends on files being included, so it can't be reused
+						cyclic = true;
+						warnings.add(
+							new Warning(
+								include_filename ? source : null,
+								buildToken(
+									lineIndex + 1,
+									lineIndex + 1,
+									1 + "#include ".length(),
+									1
+								),
+								String.format(
+									"Include cycle %s.",
+									cycle
+								)
+							)
+						);
+					} else if (included.containsKey(file) || (Files.exists(path) && !Files.isDirectory(path))) {
+						processInclude(path, file);
+					} else {
+						// Creating the file later changes the result
+						dependencies.put(file, SQFIncludeCache.stamp(path));
+						
+						if (options.isCheckPaths()) {
+							warnings.add(
+								new Warning(
+									include_filename ? source : null,
+									buildToken(
+										lineIndex + 1,
+										lineIndex + 1,
+										1 + "#include ".length(),
+										1
+									),
+									String.format(
+										"File %s doesn't seem to exists.",
+										path.toString()
+									)
+								)
+							);
+						}
 					}
-					end++;
 				}
-				
-				input = input.substring(0, index) +
-								input.substring(index + 2, end).replaceAll("\\\\\n", "") +
-								String.join("", Collections.nCopies(lines, "\n")) +
-								input.substring(end);
-			}
-			
-			index++;
+
+				break;
+			case "undef":
+				undefine(name);
+				break;
 		}
+	}
+	
+	/**
+	 * Starts conditional block.
+	 * 
+	 * @param active if the first branch of the block is used
+	 */
+	private void openBranch(boolean active) {
+		branches.add(active);
+		taken.add(active);
+	}
+	
+	/**
+	 * Evaluates condition of #if or #elif. Only conditions expanding to
+	 * a number are understood, other conditions are considered true,
+	 * so the code they guard is still checked.
+	 * 
+	 * @param condition condition following the directive
+	 * @return if the condition holds
+	 */
+	private boolean isTrue(String condition) throws SQFPreprocessorException {
+		StringBuilder expanded = new StringBuilder(condition);
+		expand(expanded, 0, false, true);
 		
-		String[] lines = input
-			.replaceAll("\r", "")
-			.split("\n");
+		try {
+			return Long.parseLong(expanded.toString().trim()) != 0;
+		} catch (NumberFormatException ex) {
+			return true;
+		}
+	}
+	
+	/**
+	 * @return if lines are used at current position
+	 */
+	private boolean isActive() {
+		return branches.isEmpty() || branches.get(branches.size() - 1);
+	}
+	
+	/**
+	 * Checks if macro is defined. Macros unknown to included file are taken
+	 * from the including file.
+	 * 
+	 * @param name macro name
+	 * @param record if result should be saved as condition of included file
+	 * @return if the macro is defined
+	 */
+	private boolean isDefined(String name, boolean record) {
+		if (macros.containsKey(name)) {
+			return true;
+		}
+		
+		if (parent == null || undefined.contains(name)) {
+			return false;
+		}
+		
+		boolean defined = parent.isDefined(name, record);
+		if (record) {
+			conditions.putIfAbsent(name, defined);
+		}
+		return defined;
+	}
+	
+	private void undefine(String name) {
+		if (macros.containsKey(name)) {
+			definedMacros.remove(modifiableMacros().remove(name));
+		}
+		undefined.add(name);
+		invalidate();
+	}
+	
+	/**
+	 * Expands macros in code part of the line, strings and comments are skipped.
+	 * 
+	 * @param line buffer containing the line at its end
+	 * @param index where the line starts
+	 * @param inComment if the line starts inside block comment
+	 * @param active if macros should be expanded
+	 * @return if the line ends inside block comment
+	 */
+	private boolean expand(StringBuilder line, int index, boolean inComment, boolean active) throws SQFPreprocessorException {
+		return expand(line, index, inComment, active, 0, Collections.emptySet());
+	}
+	
+	private boolean expand(StringBuilder line, int index, boolean inComment, boolean active, int lineNumber) throws SQFPreprocessorException {
+		return expand(line, index, inComment, active, lineNumber, Collections.emptySet());
+	}
+	
+	/**
+	 * @param line buffer containing the line at its end
+	 * @param index where the line starts
+	 * @param inComment if the line starts inside block comment
+	 * @param active if macros should be expanded
+	 * @param lineNumber line of the result origins of macro usages are tracked for, 0 to not track them
+	 * @param disabled macros which aren't expanded anywhere in the line
+	 * @return if the line ends inside block comment
+	 */
+	private boolean expand(StringBuilder line, int index, boolean inComment, boolean active, int lineNumber, Set<String> disabled) throws SQFPreprocessorException {
+		int length = line.length();
+		int replacements = 0;
 		
-		String output = input;
-		int lineIndex = 0;
+		// Text produced by macros, where the macros aren't expanded again
+		List<Expanded> hidden = new ArrayList<>();
 		
-		Pattern whitespaceAtStart = Pattern.compile("^\\s*");
-		Pattern doubleWhitespace = Pattern.compile("\\s{1,}");
-		Pattern comments = Pattern.compile("(\\/\\*.*?\\*\\/)|(\\/\\/.*)");
+		// Macro usage being expanded and length of text following it
+		String usage = null;
+		int usageStart = 0;
+		int usageTail = 0;
 		
-		boolean inComment = false;
+		if (inComment) {
+			int end = line.indexOf("*/", index);
+			if (end < 0) {
+				open = true;
+				return true;
+			}
+			index = end + 2;
+		}
 		
-		for (String line : lines) {	
-			// Remove whitespaces at beginning
-			String lineUpdated = whitespaceAtStart
-					.matcher(line)
-					.replaceAll("");
-			
-			// Remove doubled whitespaces
-			lineUpdated = doubleWhitespace
-					.matcher(lineUpdated)
-					.replaceAll(" ");
-			
-			// Remove comments
-			lineUpdated = comments
-					.matcher(lineUpdated)
-					.replaceAll("");
-			
-			// Handle multiline comments
-			// @TODO: Escapes in comments?
-			// Is there beginning of the comment and not the end on this line?
-			if (lineUpdated.contains("/*")) {
-				// Remove everyhing past the comment start
-				lineUpdated = lineUpdated
-					.substring(0, lineUpdated.indexOf("/*"));
-				// Next line is inside comment
-				inComment = true;
+		boolean pending = false;
+		char limiter = 0;
+		while (index < line.length()) {
+			if (usage != null && index >= line.length() - usageTail) {
+				addOrigin(lineNumber, usageStart, line.length() - usageTail, usage);
+				usage = null;
 			}
 			
-			// @TODO: Escapes in comments?
-			if (inComment) {
-				if (lineUpdated.contains("*/")) {
-					lineUpdated = lineUpdated
-						.substring(lineUpdated.indexOf("*/") + 2);
-
-					inComment = false;
-				} else {
-					lines[lineIndex++] = line;
-					continue;
-				}
-			}
+			char c = line.charAt(index);
 			
-			// Remove tabs
-			lineUpdated = lineUpdated.replaceAll("\t", " ");
-		
-			if (lineUpdated.length() > 0 && lineUpdated.charAt(0) == '#') {
-				// Remove line for grammar parser
-				line = "";
-
-				// Parse the line
-				String word = readUntil(lineUpdated, 1, ' ', false, false);
-				String values = readUntil(lineUpdated, 2 + word.length(), '\n', true, false);
-					
-				switch(word.toLowerCase()) {
-					case "define":
-						String ident = readUntil(values, 0, new char[] { ' ', '\t' }, true, true);
-						String value = null;
-						String arguments = null;
-						
-						// Only load value if there is any
-						if (values.length() > ident.length() + 1) {
-							value = values.substring(ident.length() + 1).trim();
+			if (limiter != 0) {
+				if (c == limiter) {
+					if (index + 1 < line.length() && line.charAt(index + 1) == limiter) {
+						index++;
+					} else {
+						limiter = 0;
+					}
+				}
+				index++;
+			} else if (c == '"' || c == '\'') {
+				limiter = c;
+				index++;
+			} else if (startsWith(line, index, "/*")) {
+				int end = line.indexOf("*/", index + 2);
+				if (end < 0) {
+					if (usage != null) {
+						addOrigin(lineNumber, usageStart, line.length() - usageTail, usage);
+					}
+					open = true;
+					return true;
+				}
+				index = end + 2;
+			} else if (startsWith(line, index, "//")) {
+				if (usage != null) {
+					addOrigin(lineNumber, usageStart, line.length() - usageTail, usage);
+				}
+				open = true;
+				return false;
+			} else if (active && isIdentifierStart(c)) {
+				int end = identifierEnd(line, index);
+				SQFMacro macro = macros.get(line.substring(index, end));
+				Set<String> context = disabled;
+				
+				if (macro != null && !hidden.isEmpty()) {
+					context = new HashSet<>(disabled);
+					for (Iterator<Expanded> iterator = hidden.iterator(); iterator.hasNext();) {
+						Expanded expanded = iterator.next();
+						if (index >= line.length() - expanded.tail) {
+							iterator.remove();
+						} else {
+							context.add(expanded.macro);
 						}
-
-						// Parse argumented macro
-						if (ident.indexOf('(') >= 0) {
-							arguments = ident.substring(ident.indexOf('(') + 1);
-							if (arguments.indexOf(')') >= 0) {
-								arguments = arguments.substring(0, arguments.indexOf(')'));
-							}
-							ident = ident.substring(0, ident.indexOf('('));
+					}
+				}
+				
+				if (macro != null && !context.contains(macro.getName())) {
+					int next = replaceMacro(line, index, macro, context);
+					if (next >= 0) {
+						if (++replacements > MAX_REPLACEMENTS || line.length() - length > MAX_GROWTH) {
+							throw new SQFPreprocessorException("Macro expansion limit exceeded while expanding " + macro.getName() + ".");
 						}
 						
-						Token token = new Token(Linter.STRING_LITERAL);
-						token.beginLine = lineIndex + 1;
-						token.endLine = lineIndex + 1;
-						token.beginColumn = 1;
-						token.endColumn = values.length() + 1;
-						
-						if (!macros.containsKey(ident)) {
-							macros.put(ident, new SQFMacro(ident, arguments, source, lineIndex));
-							sortedMacros.add(macros.get(ident));
+						if (next == index) {
+							// Same macro used in its own value is left as it is, like Arma does
+							hidden.add(new Expanded(macro.getName(), line.length() - replacedEnd));
 						}
 						
-						macros.get(ident).addDefinition(
-							include_filename ? source : null,
-							token,
-							value
-						);
-						
-						break;
-					case "include":
-						values = readUntil(lineUpdated, 2 + word.length(), '\n', false, false);
-						String filename = values.trim();
-						if (filename.length() > 0) {
-							String originalPath = filename.substring(1, filename.length() - 1);
-							String actualPath = resolvePath(originalPath).replaceAll("\\\\", "/");							
-							Path path = root.resolve(actualPath);
-
-							getIncludes().add(
-								new SQFInclude(originalPath, actualPath, source)
-							);
-
-							if (Files.exists(path) && !Files.isDirectory(path)) {
-								process(new FileInputStream(path.toString()), path.toString(), true);
-							} else if (options.isCheckPaths()) {
-								warnings.add(
-									new Warning(
-										include_filename ? source : null,
-										buildToken(
-											lineIndex + 1,
-											lineIndex + 1,
-											1 + "#include ".length(),
-											line.length() + 1
-										),
-										String.format(
-											"File %s doesn't seem to exists.",
-											path.toString()
-										)
-									)
-								);
-							}
+						if (lineNumber > 0 && usage == null) {
+							usage = macro.getName();
+							usageStart = index;
+							usageTail = line.length() - replacedEnd;
+						} else if (lineNumber > 0) {
+							// Nested usage may take its arguments from text following the outer one
+							usageTail = Math.min(usageTail, line.length() - replacedEnd);
 						}
 						
-						break;
-					case "ifdef": break;
-					case "ifndef": break;
-					case "undef": break;
-					case "else": break;
-				}
-			} else if (!inComment) {
-				try {
-					sortedMacros.sort((a, b) -> b.getName().length() - a.getName().length());
-					
-					int replaceIndex = 0;
-					boolean replaceInString = false;
-					String stringLimiter = "\"";
-					boolean replaceInComment = false;
-					while (replaceIndex < line.length()) {
-						if (replaceInString) {
-							if (replaceIndex < line.length() - 2 && line.substring(replaceIndex, replaceIndex + 2).equals(stringLimiter + stringLimiter)) {
-								replaceIndex += 2;
-							} else if (line.substring(replaceIndex, replaceIndex + 1).equals(stringLimiter)) {
-								replaceInString = false;
-							}
-							replaceIndex++;
-						} else if (replaceInComment) {
-							if (replaceIndex < line.length() - 2 && line.substring(replaceIndex, replaceIndex + 2).equals("*/")) {
-								replaceIndex += 2;
-								replaceInComment = false;
-							} else {
-								replaceIndex++;
-							}
-						} else if (replaceIndex < line.length() - 2 && line.substring(replaceIndex, replaceIndex + 2).equals("/*")) {
-							replaceIndex += 2;
-							replaceInComment = true;
-						} else if (line.substring(replaceIndex, replaceIndex + 1).equals("\"")) {
-							stringLimiter = "\"";
-							replaceIndex++;
-							replaceInString = true;
-						} else if (line.substring(replaceIndex, replaceIndex + 1).equals("'")) {
-							stringLimiter = "'";
-							replaceIndex++;
-							replaceInString = true;
-						} else {
-							boolean replaced = true;
-							while (replaced) {
-								replaced = false;
-								for (SQFMacro macro : sortedMacros) {
-									if (line.substring(replaceIndex).indexOf(macro.getName()) == 0) {
-										line = line.substring(0, replaceIndex) +
-														replaceMacro(line.substring(replaceIndex), macro);
-										replaced = true;
-										break;
-									}
-								}
-							}
-							replaceIndex++;
-						}
+						// Macros used in the expansion are expanded as well, unless it already was
+						index = next;
+						continue;
 					}
 					
-
-					// System.out.println("#" + lineIndex + "\t" + line);
-					
-				} catch (Exception ex) {
-					Logger.getLogger(SQFLint.class.getName()).log(Level.SEVERE, "Failed to parse line " + lineIndex + " of " + source, ex);
-					System.exit(1);
+					// Arguments may still follow the end of expanded text
+					pending = pending || (macro.getArguments() != null && awaitsArguments(line, end));
+				}
+				index = end;
+			} else if (isIdentifierPart(c)) {
+				// Skip numbers, so their suffixes aren't mistaken for macros
+				index = identifierEnd(line, index);
+			} else {
+				index++;
+			}
+		}
+		
+		if (usage != null) {
+			addOrigin(lineNumber, usageStart, line.length() - usageTail, usage);
+		}
+		
+		open = limiter != 0 || pending;
+		return false;
+	}
+	
+	private void addOrigin(int lineNumber, int start, int end, String macro) {
+		if (origins != null && start < end) {
+			origins.add(new Origin(lineNumber, start, end, macro));
+		}
+	}
+	
+	/**
+	 * Finds macro usage which doesn't end on the line, because its
+	 * arguments continue on following lines.
+	 * 
+	 * @param line
+	 * @return length of the line without trailing comment if there is such usage, -1 otherwise
+	 */
+	private int unclosedArguments(CharSequence line) {
+		// Lines with balanced brackets are the usual case
+		int brackets = 0;
+		for (int index = 0; index < line.length(); index++) {
+			if (line.charAt(index) == '(') {
+				brackets++;
+			} else if (line.charAt(index) == ')') {
+				brackets--;
+			}
+		}
+		
+		if (brackets <= 0) {
+			return -1;
+		}
+		
+		List<String> arguments = new ArrayList<>();
+		boolean unclosed = false;
+		char limiter = 0;
+		int index = 0;
+		
+		while (index < line.length()) {
+			char c = line.charAt(index);
+			
+			if (limiter != 0) {
+				if (c == limiter) {
+					limiter = 0;
+				}
+				index++;
+			} else if (c == '"' || c == '\'') {
+				limiter = c;
+				index++;
+			} else if (startsWith(line, index, "/*")) {
+				int end = indexOf(line, "*/", index + 2);
+				if (end < 0) {
+					return -1;
+				}
+				index = end + 2;
+			} else if (startsWith(line, index, "//")) {
+				return unclosed ? index : -1;
+			} else if (!unclosed && isIdentifierStart(c)) {
+				int end = identifierEnd(line, index);
+				SQFMacro macro = macros.get(line.subSequence(index, end).toString());
+				index = end;
+				
+				if (macro != null && macro.getArguments() != null) {
+					arguments.clear();
+					int close = readArguments(line, end, arguments);
+					if (close >= 0) {
+						index = close;
+					} else if (opensArguments(line, end)) {
+						// Rest of the line is inside the arguments, only comments matter now
+						unclosed = true;
+					}
+				}
+			} else {
+				index++;
+			}
+		}
+		
+		// Strings spanning lines are left alone, joining would change them
+		return unclosed && limiter == 0 ? line.length() : -1;
+	}
+	
+	private static int indexOf(CharSequence line, String value, int from) {
+		for (int index = from; index <= line.length() - value.length(); index++) {
+			if (startsWith(line, index, value)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return if list of arguments starts at index, possibly after whitespace
+	 */
+	private static boolean opensArguments(CharSequence line, int index) {
+		while (index < line.length() && isWhitespace(line.charAt(index))) {
+			index++;
+		}
+		
+		return index < line.length() && line.charAt(index) == '(';
+	}
+	
+	/**
+	 * @return if there is nothing but whitespace or unclosed list of arguments after index
+	 */
+	private static boolean awaitsArguments(CharSequence line, int index) {
+		while (index < line.length() && isWhitespace(line.charAt(index))) {
+			index++;
+		}
+		
+		return index >= line.length() || line.charAt(index) == '(';
+	}
+	
+	/**
+	 * @return index after the last identifier character starting at specified index
+	 */
+	static int identifierEnd(CharSequence line, int index) {
+		while (index < line.length() && isIdentifierPart(line.charAt(index))) {
+			index++;
+		}
+		return index;
+	}
+	
+	static boolean isIdentifierStart(char c) {
+		return c == '_' || Character.isLetter(c);
+	}
+	
+	static boolean isIdentifierPart(char c) {
+		return c == '_' || Character.isLetterOrDigit(c);
+	}
+	
+	/**
+	 * Normalizes directive line. Whitespaces are collapsed and comments removed.
+	 * 
+	 * @param line buffer containing the line at its end
+	 * @param index where the directive starts
+	 * @param result buffer normalized line is written to
+	 * @return if unclosed block comment starts on the line
+	 */
+	private boolean normalize(CharSequence line, int index, StringBuilder result) {
+		boolean whitespace = false;
+		for (; index < line.length(); index++) {
+			char c = line.charAt(index);
+			if (isWhitespace(c)) {
+				whitespace = true;
+			} else {
+				if (whitespace) {
+					result.append(' ');
+					whitespace = false;
+				}
+				result.append(c);
+			}
+		}
+		if (whitespace) {
+			result.append(' ');
+		}
+		
+		int read = 0;
+		int write = 0;
+		while (read < result.length()) {
+			if (startsWith(result, read, "/*")) {
+				int end = result.indexOf("*/", read + 2);
+				if (end < 0) {
+					result.setLength(write);
+					return true;
+				}
+				read = end + 2;
+			} else if (startsWith(result, read, "//")) {
+				break;
+			} else {
+				result.setCharAt(write++, result.charAt(read++));
+			}
+		}
+		result.setLength(write);
+		
+		return false;
+	}
+	
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+	}
+	
+	private static boolean startsWith(CharSequence input, int index, String prefix) {
+		if (index + prefix.length() > input.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (input.charAt(index + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Loads macros, includes and warnings from included file.
+	 * Result is taken from include cache when possible.
+	 * 
+	 * @param path resolved path to included file
+	 * @param file normalized absolute path to included file
+	 * @throws Exception 
+	 */
+	private void processInclude(Path path, Path file) throws Exception {
+		List<SQFIncludeCache.Entry> variants = included.computeIfAbsent(file, (key) -> new ArrayList<>());
+		SQFIncludeCache.Entry entry = null;
+		
+		for (SQFIncludeCache.Entry variant : variants) {
+			if (variant.matches((name) -> isDefined(name, false))) {
+				entry = variant;
+				break;
+			}
+		}
+		
+		if (entry == null && includeCache != null) {
+			entry = includeCache.get(path, options, (name) -> isDefined(name, false));
+			if (entry != null) {
+				variants.add(entry);
+			}
+		}
+		
+		if (entry != null) {
+			// Conditions of reused result are conditions of this file too
+			entry.getConditions().keySet().forEach((name) -> isDefined(name, true));
+		} else {
+			String stamp = SQFIncludeCache.stamp(path);
+			
+			// Include is processed separately, so its result can be reused
+			SQFPreprocessor header = new SQFPreprocessor(options, includeCache);
+			header.parent = this;
+			header.file = file;
+			header.included = included;
+			try (InputStream stream = new FileInputStream(path.toString())) {
+				header.process(stream, path.toString(), true);
+			}
+			
+			entry = new SQFIncludeCache.Entry(
+				stamp,
+				header.dependencies,
+				header.definedMacros,
+				header.includes,
+				header.warnings,
+				header.conditions,
+				header.undefined
+			);
+			
+			if (header.cyclic) {
+				cyclic = true;
+			} else {
+				variants.add(entry);
+				if (includeCache != null) {
+					includeCache.put(path, options, entry);
+				}
+			}
+		}
+		
+		dependencies.put(file, entry.getStamp());
+		dependencies.putAll(entry.getDependencies());
+		
+		entry.getUndefined().forEach(this::undefine);
+		
+		if (macros.isEmpty()) {
+			// Nothing to merge with, this file starts with macros of the include
+			shared = macros = entry.getEnvironment();
+			definedMacros.addAll(entry.getMacros());
+			if (!undefined.isEmpty()) {
+				undefined.removeAll(macros.keySet());
+			}
+		} else {
+			for (SQFMacro macro : entry.getMacros()) {
+				if (!macros.containsKey(macro.getName())) {
+					modifiableMacros().put(macro.getName(), new SQFMacro(
+						macro.getName(),
+						macro.getArguments(),
+						macro.getSource(),
+						macro.getLine()
+					));
+					definedMacros.add(macros.get(macro.getName()));
+					undefined.remove(macro.getName());
 				}
 				
-				// System.out.println("#" + lineIndex + "\t" + line);
+				modifiableMacro(macro.getName()).getDefinitions().addAll(macro.getDefinitions());
 			}
+		}
+		
+		invalidate();
+		
+		includes.addAll(entry.getIncludes());
+		warnings.addAll(entry.getWarnings());
+	}
+	
+	/**
+	 * @return macros which can be modified, shared macros are copied first
+	 */
+	private Map<String, SQFMacro> modifiableMacros() {
+		if (macros == shared) {
+			macros = new HashMap<>(shared);
+		}
+		return macros;
+	}
+	
+	/**
+	 * @param name name of defined macro
+	 * @return macro which can be modified, shared macro is copied first
+	 */
+	private SQFMacro modifiableMacro(String name) {
+		SQFMacro macro = macros.get(name);
+		
+		if (macro != null && shared != null && shared.get(name) == macro) {
+			SQFMacro copy = new SQFMacro(
+				macro.getName(),
+				macro.getArguments(),
+				macro.getSource(),
+				macro.getLine()
+			);
+			copy.getDefinitions().addAll(macro.getDefinitions());
 			
-			lines[lineIndex++] = line;
+			modifiableMacros().put(name, copy);
+			definedMacros.set(definedMacros.indexOf(macro), copy);
+			macro = copy;
 		}
 		
+		return macro;
+	}
+	
+	/**
+	 * @param file resolved path to included file
+	 * @return files forming include cycle, null if including the file doesn't create one
+	 */
+	private String findCycle(Path file) {
+		List<String> chain = new ArrayList<>();
+		chain.add(file.toString());
+		
+		for (SQFPreprocessor current = this; current != null && current.file != null; current = current.parent) {
+			chain.add(0, current.file.toString());
+			if (current.file.equals(file)) {
+				return String.join(" -> ", chain);
+			}
+		}
 		
-		return String.join("\n", lines);
+		return null;
 	}
 	
 	private Token buildToken(int lineStart, int lineEnd, int columnStart, int columnEnd) {
@@ -324,9 +920,10 @@ public class SQFPreprocessor {
 	 * @return updated path or original if no include path has been matched
 	 */
 	private String resolvePath(String path) {
-		for (String key : options.getIncludePaths().keySet()) {
+		for (Map.Entry<String, String> entry : options.getIncludePaths().entrySet()) {
+			String key = entry.getKey();
 			if (path.toLowerCase().indexOf(key.toLowerCase()) == 0) {
-				return options.getIncludePaths().get(key) +
+				return entry.getValue() +
 						path.substring(key.length());
 			}
 		}
@@ -334,8 +931,10 @@ public class SQFPreprocessor {
 		return path;
 	}
 	
-	private int walkToEnd(String input) {
-		int index = 0;
+	/**
+	 * @return index of bracket closing the one opened before specified index, -1 if there is none
+	 */
+	private int walkToEnd(CharSequence input, int index) {
 		int bracket = 0;
 		
 		while (index < input.length()) {
@@ -354,95 +953,223 @@ public class SQFPreprocessor {
 		return -1;
 	}
 	
-	private String replaceMacro(String line, SQFMacro macro) {
-		int index = line.indexOf(macro.getName());
-		String value = null;
+	/**
+	 * Replaces macro usage at specified index with macro value.
+	 * Argumented macro is only replaced when followed by list of arguments.
+	 * Usages in processed line are replaced by remembered expansion when
+	 * possible, usages inside such expansion are expanded in place.
+	 * 
+	 * @param line buffer containing the line at its end
+	 * @param index where the macro name starts
+	 * @param macro used macro
+	 * @param disabled macros which can't be expanded at the usage
+	 * @return index where expanding continues, -1 if the macro wasn't replaced
+	 */
+	private int replaceMacro(StringBuilder line, int index, SQFMacro macro, Set<String> disabled) throws SQFPreprocessorException {
+		SQFMacroDefinition definition = null;
+		int end = index + macro.getName().length();
 		
 		if (!macro.getDefinitions().isEmpty()) {
-			value = macro.getDefinitions().get(macro.getDefinitions().size() - 1).getValue();
+			definition = macro.getDefinitions().get(macro.getDefinitions().size() - 1);
 		}
 		
-		if (value == null) {
-			value = "";
+		List<String> arguments = Collections.emptyList();
+		if (macro.getArguments() != null) {
+			arguments = new ArrayList<>();
+			end = readArguments(line, end, arguments);
+			if (end < 0) {
+				return -1;
+			}
 		}
 		
-		if (macro.getArguments() == null) {
-			/*
-			System.out.println("At line: '" + line + "'");
-			System.out.println("MACRO: " + macro.getName());
-			System.out.println("VALUE: " + value);
-			*/
-			
-			line = line.substring(0, index) + value + line.substring(index + macro.getName().length());
-		} else {
-			String[] arguments = macro.getArguments().split(",");
-			String values = line.substring(line.indexOf('(', index) + 1);
-			
-			/*if (values.indexOf(')') >= 0) {
-				values = values.substring(0, values.indexOf(')'));
-			}*/
-			int endIndex = walkToEnd(values);
-			if (endIndex != -1) {
-				values = values.substring(0, endIndex);
-			} else {
-				values = "";
+		// Remembered expansion is only valid for usages outside of other expansions
+		if (detached == 0 && disabled.isEmpty() && definition != null && isNesting(macro.getName(), definition)) {
+			String expanded = expansion(macro, definition, arguments);
+			if (expanded != null) {
+				line.replace(index, end, expanded);
+				replacedEnd = index + expanded.length();
+				return replacedEnd;
 			}
+		}
+		
+		String value = substitute(macro, definition, arguments, disabled);
+		line.replace(index, end, value);
+		replacedEnd = index + value.length();
+		
+		return index;
+	}
+	
+	/**
+	 * @param macro used macro
+	 * @param definition used definition
+	 * @param arguments arguments of the usage
+	 * @return remembered expansion of the usage, null if it depends on text following the usage
+	 */
+	private String expansion(SQFMacro macro, SQFMacroDefinition definition, List<String> arguments) throws SQFPreprocessorException {
+		Map.Entry<SQFMacroDefinition, List<String>> key = new AbstractMap.SimpleImmutableEntry<>(definition, arguments);
+		String expanded = expansions.get(key);
+		
+		if (expanded == null && !expansions.containsKey(key)) {
+			expanded = expandDetached(
+				substitute(macro, definition, arguments, Collections.emptySet()),
+				Collections.singleton(macro.getName())
+			);
+			expansions.put(key, expanded);
+		}
+		
+		return expanded;
+	}
+	
+	/**
+	 * @param macro used macro
+	 * @param definition used definition, null if there is none
+	 * @param arguments arguments of the usage
+	 * @param disabled macros which can't be expanded at the usage
+	 * @return macro value with arguments substituted
+	 */
+	private String substitute(SQFMacro macro, SQFMacroDefinition definition, List<String> arguments, Set<String> disabled) throws SQFPreprocessorException {
+		if (definition == null) {
+			return "";
+		}
+		
+		SQFMacroTemplate template = definition.getTemplate();
+		if (macro.getArguments() == null || template == null) {
+			return definition.getValue() != null ? definition.getValue() : "";
+		}
+		
+		// Arguments are expanded before they're substituted, converted to string
+		// or pasted, so ADDON in DOUBLES(ADDON,x) is replaced as it is by Arma
+		List<String> expanded = new ArrayList<>(arguments.size());
+		for (int i = 0; i < arguments.size(); i++) {
+			expanded.add(template.isUsed(i) ? expandArgument(arguments.get(i), disabled) : "");
+		}
+		
+		StringBuilder result = new StringBuilder();
+		template.expand(expanded, result);
+		
+		return result.toString();
+	}
+	
+	/**
+	 * @param argument argument of macro usage
+	 * @param disabled macros which can't be expanded at the usage
+	 * @return argument with macros expanded, remembered for repeated arguments
+	 */
+	private String expandArgument(String argument, Set<String> disabled) throws SQFPreprocessorException {
+		String result = disabled.isEmpty() ? expandedArguments.get(argument) : null;
+		
+		if (result == null) {
+			StringBuilder buffer = new StringBuilder(argument);
+			expand(buffer, 0, false, true, 0, disabled);
+			result = buffer.toString();
 			
-			String[] args = values.split(",");
-			
-			// This is completely wrong, but #YOLO
-			// (I actually don't want to spend much time on this, because #YOLO)
-			// This works somewhat, so deal with it
-			for (int i = 0; i < arguments.length && i < args.length; i++) {
-				String argName = arguments[i].trim();
-				String argValue = args[i].trim();
-				String noletter = "([^a-zA-Z_#])";
-				
-				// @TODO: There has to be other way :O
-				value = value.replaceAll("##" + argName + "##", argValue);
-				
-				value = value.replaceAll("^" + argName + "##", argValue);
-				value = value.replaceAll(noletter + argName + "##", "$1" + argValue);
-				
-				value = value.replaceAll("##" + argName + "$", argValue);
-				value = value.replaceAll("##" + argName + noletter, argValue + "$1");
-				
-				value = value.replaceAll("#" + argName + "$", '"' + argValue + '"');
-				value = value.replaceAll("#" + argName + noletter, '"' + argValue + "\"$1");
-				
-				value = value.replaceAll("^" + argName + "$", argValue);
-				value = value.replaceAll("^" + argName + noletter, argValue + "$1");
-				value = value.replaceAll(noletter + argName + "$", "$1" + argValue);
-				value = value.replaceAll(noletter + argName + noletter, "$1" + argValue + "$2");
+			if (disabled.isEmpty()) {
+				expandedArguments.put(argument, result);
 			}
-			
-			value = value.replaceAll("##", "");
-
-			/*
-			System.out.println("At line: '" + line + "'");
-			System.out.println("MACRO: '" + macro.getName() + "'");
-			System.out.println("ARGS: '" + macro.getArguments() + "'");
-			System.out.println("VALS: '" + values + "'");
-			System.out.println("REPLACE: " + value);
-			*/
-			
-			String left = line.substring(0, index);
-			String right = "";
-			int rightIndex = index + macro.getName().length() + values.length() + 2;
-			
-			if (rightIndex < line.length()) {
-				right = line.substring(rightIndex);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @param name name of the macro
+	 * @param definition current definition of the macro
+	 * @return if value of the definition uses any other macro
+	 */
+	private boolean isNesting(String name, SQFMacroDefinition definition) {
+		Boolean result = nesting.get(name);
+		if (result != null) {
+			return result;
+		}
+		
+		String value = definition.getValue() != null ? definition.getValue() : "";
+		result = false;
+		
+		for (int index = 0; index < value.length() && !result;) {
+			if (isIdentifierStart(value.charAt(index))) {
+				int end = identifierEnd(value, index);
+				result = macros.containsKey(value.substring(index, end));
+				index = end;
+			} else {
+				index++;
 			}
+		}
+		
+		nesting.put(name, result);
+		return result;
+	}
+	
+	/**
+	 * Forgets remembered expansions, called whenever any macro changes.
+	 */
+	private void invalidate() {
+		expansions.clear();
+		expandedArguments.clear();
+		nesting.clear();
+	}
+	
+	/**
+	 * Expands macros used in macro value, outside of any line.
+	 * 
+	 * @param value macro value with arguments substituted
+	 * @param disabled macros which aren't expanded in the value
+	 * @return expanded value, null if the expansion depends on text following the usage
+	 */
+	private String expandDetached(String value, Set<String> disabled) throws SQFPreprocessorException {
+		StringBuilder result = new StringBuilder(value);
+		
+		detached++;
+		try {
+			expand(result, 0, false, true, 0, disabled);
+		} finally {
+			detached--;
+		}
+		
+		return open ? null : result.toString();
+	}
+	
+	/**
+	 * Reads list of macro arguments. Commas inside brackets don't separate arguments.
+	 * 
+	 * @param line buffer containing the line at its end
+	 * @param index where the list is expected to start
+	 * @param arguments list loaded arguments are added to
+	 * @return index after the list, -1 if there is no complete list
+	 */
+	private int readArguments(CharSequence line, int index, List<String> arguments) {
+		while (index < line.length() && isWhitespace(line.charAt(index))) {
+			index++;
+		}
+		
+		if (index >= line.length() || line.charAt(index) != '(') {
+			return -1;
+		}
+		
+		int start = ++index;
+		int bracket = 0;
+		char limiter = 0;
+		
+		for (; index < line.length(); index++) {
+			char c = line.charAt(index);
 			
-			/*
-			System.out.println("LEFT: " + left);
-			System.out.println("RIGHT: " + right);
-			*/
-			
-			line = left + value + right;
+			if (limiter != 0) {
+				if (c == limiter) {
+					limiter = 0;
+				}
+			} else if (c == '"' || c == '\'') {
+				limiter = c;
+			} else if (c == '(') {
+				bracket++;
+			} else if (c == ')' && bracket-- == 0) {
+				arguments.add(line.subSequence(start, index).toString().trim());
+				return index + 1;
+			} else if (c == ',' && bracket == 0) {
+				arguments.add(line.subSequence(start, index).toString().trim());
+				start = index + 1;
+			}
 		}
 		
-		return line;
+		return -1;
 	}
 
 	private String readUntil(String input, int from, char exit, boolean escape, boolean brackets) {
@@ -471,10 +1198,10 @@ public class SQFPreprocessor {
 			}
 			
 			if (brackets && input.charAt(from) == '(') {
-				int endIndex = walkToEnd(input.substring(from + 1));
+				int endIndex = walkToEnd(input, from + 1);
 				if (endIndex >= 0) {
-					res.append(input.substring(from + 1, from + 2 + endIndex));
-					from += endIndex + 1;
+					res.append(input.substring(from + 1, endIndex + 1));
+					from = endIndex;
 				}
 			}
 			
@@ -507,4 +1234,322 @@ public class SQFPreprocessor {
 	public List<Warning> getWarnings() {
 		return warnings;
 	}
+
+	/**
+	 * @return exception which stopped processing, null if there was none
+	 */
+	public Exception getFailure() {
+		return failure;
+	}
+
+	/**
+	 * @return time spent processing input, in nanoseconds
+	 */
+	public long getTime() {
+		return time;
+	}
+	
+	/**
+	 * Starts tracking which macro usages produced which parts of the result,
+	 * so they can be assigned to tokens. Has to be called before reading starts.
+	 */
+	public void trackOrigins() {
+		origins = new ArrayDeque<>();
+	}
+	
+	@Override
+	public String getMacro(int line, int column) {
+		if (origins == null) {
+			return null;
+		}
+		
+		// Usages before the position won't be asked for again
+		Origin origin;
+		while ((origin = origins.peek()) != null && (origin.line < line || (origin.line == line && origin.end < column))) {
+			origins.poll();
+		}
+		
+		if (origin != null && origin.line == line && origin.start < column) {
+			return origin.macro;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Part of line produced by macro, as distance of its end from end of the line.
+	 */
+	private static class Expanded {
+		private final String macro;
+		private final int tail;
+		
+		public Expanded(String macro, int tail) {
+			this.macro = macro;
+			this.tail = tail;
+		}
+	}
+	
+	/**
+	 * Part of result line produced by top level macro usage.
+	 */
+	private static class Origin {
+		private final int line;
+		private final int start;
+		private final int end;
+		private final String macro;
+		
+		public Origin(int line, int start, int end, String macro) {
+			this.line = line;
+			this.start = start;
+			this.end = end;
+			this.macro = macro;
+		}
+	}
+	
+	/**
+	 * Preprocessed contents of single file, produced line by line.
+	 */
+	private class Output extends Reader {
+		private final Reader input;
+		private final String source;
+		private final Path root;
+		private final boolean include_filename;
+		
+		private final char[] chunk = new char[8192];
+		private int chunkIndex = 0;
+		private int chunkLength = 0;
+		private int pushback = -2;
+		
+		private final StringBuilder line = new StringBuilder();
+		private final StringBuilder following = new StringBuilder();
+		private final StringBuilder directive = new StringBuilder();
+		private final StringBuilder buffer = new StringBuilder();
+		private int position = 0;
+		
+		private boolean inComment = false;
+		private boolean finished = false;
+		private int lineIndex = 0;
+		private int newlines = 0;
+		// Number of lines joined into line read ahead, -1 if there is no such line
+		private int followingJoined = -1;
+		
+		public Output(Reader input, String source, Path root, boolean include_filename) {
+			this.input = input;
+			this.source = source;
+			this.root = root;
+			this.include_filename = include_filename;
+		}
+		
+		@Override
+		public int read(char[] target, int offset, int length) throws IOException {
+			while (position >= buffer.length()) {
+				if (finished && followingJoined < 0) {
+					return -1;
+				}
+				
+				buffer.setLength(0);
+				position = 0;
+				
+				long start = System.nanoTime();
+				try {
+					processLine();
+				} catch (IOException ex) {
+					finished = true;
+					failure = ex;
+					throw ex;
+				} catch (Exception ex) {
+					finished = true;
+					failure = ex;
+					throw new IOException(ex);
+				} finally {
+					time += System.nanoTime() - start;
+				}
+			}
+			
+			int count = Math.min(length, buffer.length() - position);
+			buffer.getChars(position, position + count, target, offset);
+			position += count;
+			
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			input.close();
+		}
+		
+		private void processLine() throws Exception {
+			int joined;
+			if (followingJoined >= 0) {
+				line.setLength(0);
+				line.append(following);
+				joined = followingJoined;
+				followingJoined = -1;
+			} else {
+				joined = readLine(line);
+			}
+			
+			// Empty lines at the end of input aren't part of the result
+			if (line.length() == 0) {
+				newlines += joined + 1;
+				lineIndex += joined + 1;
+				return;
+			}
+			
+			int first = 0;
+			while (first < line.length() && isWhitespace(line.charAt(first))) {
+				first++;
+			}
+			
+			if (!inComment && first < line.length() && line.charAt(first) == '#') {
+				directive.setLength(0);
+				inComment = normalize(line, first, directive);
+				
+				// Remove line for grammar parser
+				line.setLength(0);
+				
+				try {
+					processDirective(directive.toString(), lineIndex, source, root, include_filename);
+				} catch (SQFPreprocessorException ex) {
+					throw located(ex);
+				} catch (Exception | StackOverflowError ex) {
+					throw located(new SQFPreprocessorException(null, 0, "Failed to process directive: " + ex, ex));
+				}
+			} else if (!isActive()) {
+				// Inactive lines never reach the parser, only comments are tracked
+				inComment = expand(line, 0, inComment, false);
+				line.setLength(0);
+			} else {
+				if (!inComment) {
+					joined += joinArguments();
+				}
+				
+				try {
+					inComment = expand(line, 0, inComment, true, origins != null ? lineIndex + 1 : 0);
+				} catch (SQFPreprocessorException ex) {
+					throw located(ex);
+				} catch (StackOverflowError ex) {
+					throw located(new SQFPreprocessorException(null, 0, "Macro expansion is nested too deeply.", ex));
+				} catch (RuntimeException ex) {
+					throw located(new SQFPreprocessorException(null, 0, "Failed to expand line: " + ex, ex));
+				}
+			}
+			
+			for (; newlines > 0; newlines--) {
+				buffer.append('\n');
+			}
+			buffer.append(line);
+			
+			// Joined lines are kept as empty lines to preserve line numbers
+			newlines = joined + 1;
+			lineIndex += joined + 1;
+		}
+		
+		/**
+		 * Adds position of current line to failure which doesn't have any.
+		 * Failures of included files are already located in those files.
+		 */
+		private SQFPreprocessorException located(SQFPreprocessorException ex) {
+			if (ex.getLine() > 0) {
+				return ex;
+			}
+			
+			return new SQFPreprocessorException(
+				include_filename ? source : null,
+				lineIndex + 1,
+				ex.getMessage(),
+				ex.getCause()
+			);
+		}
+		
+		/**
+		 * Joins lines following current line while it contains macro usage
+		 * with unclosed list of arguments. Directive stops the joining.
+		 * 
+		 * @return number of joined lines
+		 */
+		private int joinArguments() throws IOException {
+			int joined = 0;
+			int end;
+			
+			while (!finished && joined < MAX_ARGUMENT_LINES && (end = unclosedArguments(line)) >= 0) {
+				int count = readLine(following) + 1;
+				
+				int first = 0;
+				while (first < following.length() && isWhitespace(following.charAt(first))) {
+					first++;
+				}
+				
+				if (first < following.length() && following.charAt(first) == '#') {
+					followingJoined = count - 1;
+					break;
+				}
+				
+				line.setLength(end);
+				line.append(' ').append(following);
+				joined += count;
+			}
+			
+			return joined;
+		}
+		
+		/**
+		 * Reads logical line, escaped newlines are joined and carriage returns dropped.
+		 * 
+		 * @param line buffer the line is loaded into
+		 * @return number of joined lines
+		 */
+		private int readLine(StringBuilder line) throws IOException {
+			int joined = 0;
+			int c;
+			
+			line.setLength(0);
+			
+			while ((c = next()) >= 0 && c != '\n') {
+				if (c == '\r') {
+					continue;
+				}
+				
+				if (c == '\\') {
+					int following = next();
+					while (following == '\r') {
+						following = next();
+					}
+					
+					if (following == '\n') {
+						joined++;
+						continue;
+					}
+					pushback = following;
+				}
+				
+				line.append((char)c);
+			}
+			
+			if (c < 0) {
+				finished = true;
+			}
+			
+			return joined;
+		}
+		
+		private int next() throws IOException {
+			if (pushback != -2) {
+				int c = pushback;
+				pushback = -2;
+				return c;
+			}
+			
+			if (chunkIndex >= chunkLength) {
+				chunkLength = input.read(chunk);
+				chunkIndex = 0;
+				if (chunkLength <= 0) {
+					chunkLength = 0;
+					return -1;
+				}
+			}
+			
+			return chunk[chunkIndex++];
+		}
+	}
 }
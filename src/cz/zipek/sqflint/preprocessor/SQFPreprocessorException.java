@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.preprocessor;
+
+/**
+ * Failure which stopped preprocessing of a file.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class SQFPreprocessorException extends Exception {
+	private static final long serialVersionUID = 1L;
+	
+	private final String filename;
+	private final int line;
+	
+	public SQFPreprocessorException(String message) {
+		this(null, 0, message, null);
+	}
+	
+	/**
+	 * @param filename file which failed, null if results don't contain file name
+	 * @param line one based line which failed, 0 if it isn't known yet
+	 * @param message
+	 * @param cause 
+	 */
+	public SQFPreprocessorException(String filename, int line, String message, Throwable cause) {
+		super(message, cause);
+		this.filename = filename;
+		this.line = line;
+	}
+
+	/**
+	 * @return file which failed, null if results don't contain file name
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * @return one based line which failed, 0 if it isn't known
+	 */
+	public int getLine() {
+		return line;
+	}
+}
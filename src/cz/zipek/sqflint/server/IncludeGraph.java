@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.server;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Persistent graph of includes between linted files.
+ * For every linted file, graph remembers all files it included (including
+ * files included by included files), which allows to quickly find every
+ * file affected by change of single header.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class IncludeGraph {
+	// Linted file -> all files it includes transitively
+	private final Map<Path, Set<Path>> includes = new HashMap<>();
+	// Included file -> all linted files including it transitively
+	private final Map<Path, Set<Path>> dependents = new HashMap<>();
+	
+	/**
+	 * Replaces list of includes of specified file.
+	 * 
+	 * @param file linted file
+	 * @param included all files included when linting the file
+	 */
+	public synchronized void update(Path file, Collection<Path> included) {
+		file = normalize(file);
+		
+		Set<Path> previous = includes.remove(file);
+		if (previous != null) {
+			for (Path include : previous) {
+				Set<Path> files = dependents.get(include);
+				if (files != null) {
+					files.remove(file);
+					if (files.isEmpty()) {
+						dependents.remove(include);
+					}
+				}
+			}
+		}
+		
+		Set<Path> current = new HashSet<>();
+		for (Path include : included) {
+			if (include != null) {
+				current.add(normalize(include));
+			}
+		}
+		
+		if (!current.isEmpty()) {
+			includes.put(file, current);
+			for (Path include : current) {
+				dependents.computeIfAbsent(include, k -> new HashSet<>()).add(file);
+			}
+		}
+	}
+	
+	/**
+	 * Returns all linted files which include specified file, directly or
+	 * through other included files.
+	 * 
+	 * @param include
+	 * @return sorted list of dependent files
+	 */
+	public synchronized Set<Path> getDependents(Path include) {
+		Set<Path> result = dependents.get(normalize(include));
+		if (result == null) {
+			return Collections.emptySet();
+		}
+		return new TreeSet<>(result);
+	}
+	
+	/**
+	 * @param file linted file
+	 * @return all files included by specified file
+	 */
+	public synchronized Set<Path> getIncludes(Path file) {
+		Set<Path> result = includes.get(normalize(file));
+		if (result == null) {
+			return Collections.emptySet();
+		}
+		return new TreeSet<>(result);
+	}
+	
+	/**
+	 * @return number of files with known includes
+	 */
+	public synchronized int size() {
+		return includes.size();
+	}
+	
+	private Path normalize(Path path) {
+		return path.toAbsolutePath().normalize();
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations with fixed buckets.
+ * Every power of two is split into four buckets, so reported percentiles
+ * are at most 25 % above the real value, while recording a value is just
+ * few atomic increments.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+	
+	/**
+	 * Records single duration.
+	 * @param nanos duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		nanos = Math.max(0, nanos);
+		
+		counts.incrementAndGet(bucket(nanos));
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+	
+	/**
+	 * @return number of recorded durations
+	 */
+	public long getCount() {
+		long result = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			result += counts.get(i);
+		}
+		return result;
+	}
+	
+	/**
+	 * @return sum of all recorded durations in nanoseconds
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+	
+	/**
+	 * @return longest recorded duration in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Estimates percentile of recorded durations.
+	 * 
+	 * @param percentile requested percentile, between 0 and 1
+	 * @return upper bound of bucket containing the percentile, in nanoseconds
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		
+		if (count == 0) {
+			return 0;
+		}
+		
+		long rank = Math.max(1, (long)Math.ceil(percentile * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), getMax());
+			}
+		}
+		
+		return getMax();
+	}
+	
+	/**
+	 * @param value recorded value
+	 * @return index of bucket containing the value
+	 */
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+		
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+	
+	/**
+	 * @param bucket bucket index
+	 * @return highest value stored in the bucket
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		
+		int exponent = bucket / SUB_BUCKETS - 1 + SUB_BITS;
+		int sub = bucket % SUB_BUCKETS;
+		
+		// Overflows to Long.MAX_VALUE for the last bucket
+		return ((long)(SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+}
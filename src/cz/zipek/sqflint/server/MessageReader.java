@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads messages framed by Content-Length header, as used by JSON-RPC
+ * in Language Server Protocol.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class MessageReader {
+	private final InputStream input;
+	
+	public MessageReader(InputStream input) {
+		this.input = input;
+	}
+	
+	/**
+	 * Reads next message.
+	 * 
+	 * @return message contents, null at end of input
+	 * @throws IOException when input is malformed or can't be read
+	 */
+	public String read() throws IOException {
+		int length = -1;
+		
+		while (true) {
+			String header = readHeader();
+			if (header == null) {
+				return null;
+			}
+			
+			// Empty line separates headers from contents
+			if (header.isEmpty()) {
+				break;
+			}
+			
+			int separator = header.indexOf(':');
+			if (separator > 0 && header.substring(0, separator).trim().equalsIgnoreCase("Content-Length")) {
+				try {
+					length = Integer.parseInt(header.substring(separator + 1).trim());
+				} catch (NumberFormatException ex) {
+					throw new IOException("Invalid Content-Length header: " + header);
+				}
+			}
+		}
+		
+		if (length < 0) {
+			throw new IOException("Message without Content-Length header");
+		}
+		
+		byte[] content = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int read = input.read(content, offset, length - offset);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of message");
+			}
+			offset += read;
+		}
+		
+		return new String(content, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Reads single header line terminated by CRLF.
+	 * 
+	 * @return header line without line ending, null at end of input
+	 * @throws IOException 
+	 */
+	private String readHeader() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		
+		while (true) {
+			int c = input.read();
+			if (c < 0) {
+				if (line.size() == 0) {
+					return null;
+				}
+				throw new EOFException("Unexpected end of header");
+			}
+			
+			if (c == '\n') {
+				break;
+			}
+			
+			if (c != '\r') {
+				line.write(c);
+			}
+		}
+		
+		return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+	}
+}
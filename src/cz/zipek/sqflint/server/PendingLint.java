@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.server;
+
+import cz.zipek.sqflint.linter.Linter;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lint request of single file waiting in queue or being linted.
+ * Newer request of the same file supersedes this one, which either drops
+ * it from queue or cancels running linter.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class PendingLint {
+	private final String file;
+	private final Object id;
+	
+	private static final int QUEUED = 0;
+	private static final int RUNNING = 1;
+	private static final int DROPPED = 2;
+	
+	private final AtomicInteger state = new AtomicInteger(QUEUED);
+	private volatile boolean cancelled = false;
+	private volatile Linter linter;
+	private volatile Future<?> future;
+	
+	/**
+	 * @param file linted file
+	 * @param id request id, null if there isn't any
+	 */
+	public PendingLint(String file, Object id) {
+		this.file = file;
+		this.id = id;
+	}
+	
+	/**
+	 * Marks request as running.
+	 * 
+	 * @return false if request was dropped and shouldn't run at all
+	 */
+	public boolean start() {
+		return state.compareAndSet(QUEUED, RUNNING);
+	}
+	
+	/**
+	 * Cancels this request.
+	 * Request which didn't start yet is dropped and the caller is
+	 * responsible for answering it, running request is answered by its task.
+	 * 
+	 * @return true if request was dropped before it started
+	 */
+	public boolean cancel() {
+		cancelled = true;
+		
+		if (state.compareAndSet(QUEUED, DROPPED)) {
+			Future<?> queued = future;
+			if (queued != null) {
+				queued.cancel(false);
+			}
+			
+			return true;
+		}
+		
+		Linter current = linter;
+		if (current != null) {
+			current.cancel();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Assigns linter running this request, so it can be cancelled.
+	 * @param linter 
+	 */
+	public void attach(Linter linter) {
+		this.linter = linter;
+		
+		// Request could've been cancelled before linter existed
+		if (cancelled) {
+			linter.cancel();
+		}
+	}
+	
+	/**
+	 * @param future queued task of this request
+	 */
+	public void setFuture(Future<?> future) {
+		this.future = future;
+	}
+	
+	/**
+	 * @return if request was superseded
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return linted file
+	 */
+	public String getFile() {
+		return file;
+	}
+
+	/**
+	 * @return request id, null if there isn't any
+	 */
+	public Object getId() {
+		return id;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.server;
+
+import java.io.PrintStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single thread responsible for writing server responses.
+ * Workers only push finished responses here, so lines from different
+ * workers never interleave on the output.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class ResponseWriter implements Runnable {
+	private static final String END = new String("END");
+	
+	private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+	protected final PrintStream output;
+	
+	public ResponseWriter(PrintStream output) {
+		this.output = output;
+	}
+	
+	/**
+	 * Queues response to be written.
+	 * @param response 
+	 */
+	public void write(String response) {
+		queue.add(response);
+	}
+	
+	/**
+	 * Stops the writer after all already queued responses are written.
+	 */
+	public void close() {
+		queue.add(END);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				String response = queue.take();
+				if (response == END) {
+					break;
+				}
+				
+				send(response);
+			}
+		} catch (InterruptedException ex) {
+			Logger.getLogger(ResponseWriter.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+	
+	/**
+	 * Writes single response to the output.
+	 * @param response 
+	 */
+	protected void send(String response) {
+		output.println(response);
+		output.flush();
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.server;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONException;
+import org.json.JSONStringer;
+
+/**
+ * Counters and latency histograms of running server.
+ * Everything is updated without locking, so stats can be collected
+ * all the time.
+ * 
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class ServerStats {
+	public enum Phase {
+		DECODE, PREPROCESS, PARSE, ANALYZE, OUTPUT
+	}
+	
+	private final long started = System.currentTimeMillis();
+	
+	private final LongAdder received = new LongAdder();
+	private final LongAdder linted = new LongAdder();
+	private final LongAdder superseded = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	
+	private final Map<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+	
+	public ServerStats() {
+		for (Phase phase : Phase.values()) {
+			phases.put(phase, new LatencyHistogram());
+		}
+	}
+	
+	/**
+	 * @param phase finished phase
+	 * @param nanos duration of the phase in nanoseconds
+	 */
+	public void record(Phase phase, long nanos) {
+		phases.get(phase).record(nanos);
+	}
+	
+	/**
+	 * Counts received lint request.
+	 */
+	public void received() {
+		received.increment();
+	}
+	
+	/**
+	 * Counts file which was actually linted (not answered from cache).
+	 */
+	public void linted() {
+		linted.increment();
+	}
+	
+	/**
+	 * Counts request superseded by newer request.
+	 */
+	public void superseded() {
+		superseded.increment();
+	}
+	
+	/**
+	 * Counts request which failed with exception.
+	 */
+	public void failed() {
+		failed.increment();
+	}
+	
+	/**
+	 * Writes uptime, counters and phase histograms as keys of current object.
+	 * Durations are written in milliseconds.
+	 * 
+	 * @param output
+	 * @throws JSONException 
+	 */
+	public void write(JSONStringer output) throws JSONException {
+		output
+			.key("uptime").value(System.currentTimeMillis() - started)
+			.key("requests")
+			.object()
+				.key("received").value(received.sum())
+				.key("linted").value(linted.sum())
+				.key("superseded").value(superseded.sum())
+				.key("failed").value(failed.sum())
+			.endObject();
+		
+		output.key("phases").object();
+		for (Map.Entry<Phase, LatencyHistogram> entry : phases.entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			long count = histogram.getCount();
+			
+			output
+				.key(entry.getKey().name().toLowerCase())
+				.object()
+					.key("count").value(count)
+					.key("mean").value(count > 0 ? millis(histogram.getTotal() / count) : 0)
+					.key("p50").value(millis(histogram.getPercentile(0.5)))
+					.key("p95").value(millis(histogram.getPercentile(0.95)))
+					.key("p99").value(millis(histogram.getPercentile(0.99)))
+					.key("max").value(millis(histogram.getMax()))
+				.endObject();
+		}
+		output.endObject();
+	}
+	
+	private static double millis(long nanos) {
+		return Math.round(nanos / 1000.0) / 1000.0;
+	}
+}
@@ -50,6 +50,8 @@ public class SQFBlock extends SQFUnit {
 	@Override
 	public void analyze(Linter source, SQFBlock context) {
 		for (SQFUnit unit : getStatements()) {
+			source.checkCancelled();
+			
 			if (unit != null)
 				unit.analyze(source, this);
 		}
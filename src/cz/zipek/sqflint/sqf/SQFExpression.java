@@ -31,13 +31,14 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
  * @author kamen
  */
 public class SQFExpression extends SQFUnit {
-	static int idCounter = 0;
+	static AtomicInteger idCounter = new AtomicInteger();
 	static Map<String, SQFExpression> called = new HashMap<>();
 	
 	private final Token token;
@@ -53,7 +54,7 @@ public class SQFExpression extends SQFUnit {
 	
 	public SQFExpression(Linter linter, Token token) {
 		super(linter);
-		id = idCounter++;
+		id = idCounter.getAndIncrement();
 		this.token = token;
 	}
 	
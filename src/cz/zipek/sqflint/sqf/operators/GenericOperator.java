@@ -29,8 +29,8 @@ import cz.zipek.sqflint.sqf.SQFBlock;
 import cz.zipek.sqflint.sqf.SQFContext;
 import cz.zipek.sqflint.sqf.SQFExpression;
 import cz.zipek.sqflint.sqf.SQFUnit;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * Generic operator which has its definition loaded from commands dump.
@@ -44,16 +44,51 @@ public class GenericOperator extends Operator {
 	}
 	
 	private final String name;
-	private final List<Type> left;
-	private final List<Type> right;
+	private final Set<Type> left;
+	private final Set<Type> right;
 
 	private boolean leftEmpty;
 	private boolean rightEmpty;
 	
 	public GenericOperator(String name) {
 		this.name = name;
-		this.left = new ArrayList<>();
-		this.right = new ArrayList<>();
+		this.left = EnumSet.noneOf(Type.class);
+		this.right = EnumSet.noneOf(Type.class);
+	}
+	
+	/**
+	 * @return operator name
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return if left side can be empty
+	 */
+	public boolean isLeftEmptyAllowed() {
+		return leftEmpty;
+	}
+	
+	/**
+	 * @return if right side can be empty
+	 */
+	public boolean isRightEmptyAllowed() {
+		return rightEmpty;
+	}
+	
+	/**
+	 * @return allowed types of left side
+	 */
+	public Set<Type> getLeft() {
+		return left;
+	}
+	
+	/**
+	 * @return allowed types of right side
+	 */
+	public Set<Type> getRight() {
+		return right;
 	}
 	
 	public void allowLeftEmpty(boolean allow) {
@@ -91,7 +126,7 @@ public class GenericOperator extends Operator {
 		for(Side item : sides) {
 			SQFExpression side = item.unit;
 			String sideName = item.name;
-			List<Type> values = item.values;
+			Set<Type> values = item.values;
 			
 			if (values == null || values.isEmpty()) {
 				/*
@@ -159,10 +194,10 @@ public class GenericOperator extends Operator {
 	private class Side {
 		public final SQFExpression unit;
 		public final String name;
-		public final List<Type> values;
+		public final Set<Type> values;
 		public final boolean optional;
 
-		public Side(SQFExpression unit, String name, List<Type> values, boolean optional) {
+		public Side(SQFExpression unit, String name, Set<Type> values, boolean optional) {
 			this.unit = unit;
 			this.name = name;
 			this.values = values;
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint;
+
+import cz.zipek.sqflint.linter.Options;
+import cz.zipek.sqflint.server.MessageReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class SQFLintLanguageServerTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/**
+	 * Runs language server with specified messages as its input.
+	 * 
+	 * @param messages
+	 * @return messages written by the server
+	 * @throws Exception 
+	 */
+	private List<JSONObject> serve(JSONObject... messages) throws Exception {
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+		for (JSONObject message : messages) {
+			byte[] content = message.toString().getBytes(StandardCharsets.UTF_8);
+			input.write(("Content-Length: " + content.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			input.write(content);
+		}
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		SQFLintLanguageServer server = new SQFLintLanguageServer(new Options(), 1, 0, new PrintStream(output));
+		try {
+			server.run(new ByteArrayInputStream(input.toByteArray()));
+		} finally {
+			server.shutdown();
+		}
+		
+		List<JSONObject> result = new ArrayList<>();
+		MessageReader reader = new MessageReader(new ByteArrayInputStream(output.toByteArray()));
+		String message;
+		while ((message = reader.read()) != null) {
+			result.add(new JSONObject(message));
+		}
+		
+		return result;
+	}
+	
+	private JSONObject didOpen(Path file, String text) throws Exception {
+		return new JSONObject()
+			.put("jsonrpc", "2.0")
+			.put("method", "textDocument/didOpen")
+			.put("params", new JSONObject()
+				.put("textDocument", new JSONObject()
+					.put("uri", file.toUri().toString())
+					.put("version", 1)
+					.put("text", text)
+				)
+			);
+	}
+	
+	private JSONArray diagnostics(List<JSONObject> messages) throws Exception {
+		for (JSONObject message : messages) {
+			if ("textDocument/publishDiagnostics".equals(message.optString("method"))) {
+				return message.getJSONObject("params").getJSONArray("diagnostics");
+			}
+		}
+		
+		fail("No diagnostics were published");
+		return null;
+	}
+	
+	/**
+	 * Tests if failure located in the document itself keeps its position.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testDocumentFailure() throws Exception {
+		Path file = folder.getRoot().toPath().resolve("file.sqf");
+		
+		JSONArray diagnostics = diagnostics(serve(didOpen(file, "_x = 1;\n_y = 2;\n#define D(x) x x x x x x x x\n_z = D(D(D(D(D(D(D(1)))))));")));
+		assertEquals(1, diagnostics.length());
+		
+		JSONObject diagnostic = diagnostics.getJSONObject(0);
+		assertEquals(3, diagnostic.getJSONObject("range").getJSONObject("start").getInt("line"));
+		assertFalse(diagnostic.getString("message").contains(file.toString()));
+	}
+	
+	/**
+	 * Tests if failure located in included file is reported with its name.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testIncludeFailure() throws Exception {
+		Path root = folder.getRoot().toPath();
+		Path header = root.resolve("h.hpp");
+		Files.write(header, "#define D(x) x x x x x x x x\n_b = D(D(D(D(D(D(D(1)))))));".getBytes(StandardCharsets.UTF_8));
+		
+		JSONArray diagnostics = diagnostics(serve(didOpen(root.resolve("file.sqf"), "_x = 1;\n#include \"h.hpp\"\n_y = 2;")));
+		assertEquals(1, diagnostics.length());
+		
+		JSONObject diagnostic = diagnostics.getJSONObject(0);
+		assertEquals(0, diagnostic.getJSONObject("range").getJSONObject("start").getInt("line"));
+		assertTrue(diagnostic.getString("message").endsWith("(" + header.toString() + ")"));
+	}
+	
+	/**
+	 * Tests if messages without document don't stop the server.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testMissingDocument() throws Exception {
+		List<JSONObject> messages = serve(
+			new JSONObject().put("jsonrpc", "2.0").put("method", "textDocument/didOpen"),
+			new JSONObject().put("jsonrpc", "2.0").put("id", 1).put("method", "textDocument/didClose").put("params", new JSONObject()),
+			new JSONObject().put("jsonrpc", "2.0").put("id", 2).put("method", "shutdown")
+		);
+		
+		assertEquals(2, messages.size());
+		assertEquals(1, messages.get(0).getInt("id"));
+		assertTrue(messages.get(0).has("error"));
+		assertEquals(2, messages.get(1).getInt("id"));
+		assertTrue(messages.get(1).has("result"));
+	}
+}
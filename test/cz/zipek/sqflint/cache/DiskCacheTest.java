@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.cache;
+
+import cz.zipek.sqflint.linter.Options;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class DiskCacheTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/**
+	 * Tests if key changes with everything the result depends on.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testKey() throws Exception {
+		Options options = new Options();
+		Options other = options.derive();
+		other.setSkipWarnings(true);
+		
+		String key = DiskCache.key("a.sqf", "_x = 1;", options, "text");
+		assertEquals(key, DiskCache.key("a.sqf", "_x = 1;", options.derive(), "text"));
+		assertNotEquals(key, DiskCache.key("b.sqf", "_x = 1;", options, "text"));
+		assertNotEquals(key, DiskCache.key("a.sqf", "_x = 2;", options, "text"));
+		assertNotEquals(key, DiskCache.key("a.sqf", "_x = 1;", other, "text"));
+		assertNotEquals(key, DiskCache.key("a.sqf", "_x = 1;", options, "json"));
+	}
+	
+	/**
+	 * Tests if result is dropped when its include changes.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testIncludeChange() throws Exception {
+		Path include = folder.newFile("h.hpp").toPath();
+		Files.write(include, "#define A 1".getBytes(StandardCharsets.UTF_8));
+		
+		DiskCache cache = new DiskCache(folder.newFolder("cache").toPath(), 1024 * 1024);
+		cache.put("key", Collections.singletonList(include), new JSONObject().put("code", 0));
+		
+		assertEquals(0, cache.get("key").getInt("code"));
+		assertNull(cache.get("other"));
+		
+		Files.write(include, "#define A 2".getBytes(StandardCharsets.UTF_8));
+		assertNull(cache.get("key"));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+	
+	/**
+	 * Tests if eviction removes old entries and temporary files left by crashed process.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testEvict() throws Exception {
+		Path directory = folder.newFolder("cache").toPath();
+		DiskCache writer = new DiskCache(directory, 1024 * 1024);
+		writer.put("old", Collections.emptyList(), new JSONObject().put("code", 0));
+		writer.put("new", Collections.emptyList(), new JSONObject().put("code", 0));
+		Files.setLastModifiedTime(directory.resolve("old.json"), FileTime.fromMillis(1000));
+		
+		// Only single entry fits
+		DiskCache cache = new DiskCache(directory, Files.size(directory.resolve("new.json")));
+		
+		Path stale = Files.createFile(directory.resolve("stale.tmp"));
+		Files.setLastModifiedTime(stale, FileTime.fromMillis(1000));
+		Path recent = Files.createFile(directory.resolve("recent.tmp"));
+		
+		cache.evict();
+		
+		assertFalse(Files.exists(directory.resolve("old.json")));
+		assertTrue(Files.exists(directory.resolve("new.json")));
+		assertFalse(Files.exists(stale));
+		assertTrue(Files.exists(recent));
+	}
+}
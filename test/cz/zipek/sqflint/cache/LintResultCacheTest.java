@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.cache;
+
+import cz.zipek.sqflint.linter.Options;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import org.json.JSONArray;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class LintResultCacheTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/**
+	 * Tests if key changes with path, contents and options.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testKey() throws Exception {
+		Options options = new Options();
+		Options other = options.derive();
+		other.setCheckPaths(true);
+		
+		String key = LintResultCache.key("a.sqf", "_x = 1;", options);
+		assertEquals(key, LintResultCache.key("a.sqf", "_x = 1;", options.derive()));
+		assertNotEquals(key, LintResultCache.key("b.sqf", "_x = 1;", options));
+		assertNotEquals(key, LintResultCache.key("a.sqf", "_x = 2;", options));
+		assertNotEquals(key, LintResultCache.key("a.sqf", "_x = 1;", other));
+	}
+	
+	/**
+	 * Tests if result is only dropped when contents of its include change.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testIncludeChange() throws Exception {
+		Path file = folder.newFile("file.sqf").toPath();
+		Path include = folder.newFile("h.hpp").toPath();
+		Files.write(include, "#define A 1".getBytes(StandardCharsets.UTF_8));
+		
+		LintResultCache cache = new LintResultCache(10);
+		JSONArray messages = new JSONArray();
+		cache.put("key", file, Collections.singletonList(include), messages);
+		assertSame(messages, cache.get("key"));
+		
+		// Touched file with the same contents keeps the result
+		Files.setLastModifiedTime(include, FileTime.fromMillis(1000));
+		assertSame(messages, cache.get("key"));
+		
+		Files.write(include, "#define A 22".getBytes(StandardCharsets.UTF_8));
+		assertNull(cache.get("key"));
+		assertEquals(0, cache.size());
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+	
+	/**
+	 * Tests if results of specified files are removed and least recently used result is evicted.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testInvalidate() throws Exception {
+		Path a = folder.newFile("a.sqf").toPath();
+		Path b = folder.newFile("b.sqf").toPath();
+		
+		LintResultCache cache = new LintResultCache(2);
+		cache.put("a", a, Collections.emptyList(), new JSONArray());
+		cache.put("b", b, Collections.emptyList(), new JSONArray());
+		
+		assertEquals(1, cache.invalidate(Collections.singletonList(a)));
+		assertNull(cache.get("a"));
+		assertNotNull(cache.get("b"));
+		
+		cache.put("c", a, Collections.emptyList(), new JSONArray());
+		cache.put("d", a, Collections.emptyList(), new JSONArray());
+		assertNull(cache.get("b"));
+		assertEquals(2, cache.size());
+	}
+}
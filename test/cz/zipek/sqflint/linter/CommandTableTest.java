@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.linter;
+
+import cz.zipek.sqflint.sqf.operators.GenericOperator;
+import cz.zipek.sqflint.sqf.operators.Operator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class CommandTableTest {
+	
+	private Map<String, Operator> parse() throws Exception {
+		Map<String, Operator> operators = new LinkedHashMap<>();
+		try (InputStream in = CommandTable.class.getResourceAsStream(CommandTable.SOURCE)) {
+			CommandTable.parse(in, operators);
+		}
+		return operators;
+	}
+	
+	private void assertSameTable(Map<String, Operator> expected, Map<String, Operator> actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+		
+		for (Map.Entry<String, Operator> entry : expected.entrySet()) {
+			GenericOperator a = (GenericOperator)entry.getValue();
+			GenericOperator b = (GenericOperator)actual.get(entry.getKey());
+			
+			assertEquals(entry.getKey(), a.getLeft(), b.getLeft());
+			assertEquals(entry.getKey(), a.getRight(), b.getRight());
+			assertEquals(entry.getKey(), a.isLeftEmptyAllowed(), b.isLeftEmptyAllowed());
+			assertEquals(entry.getKey(), a.isRightEmptyAllowed(), b.isRightEmptyAllowed());
+		}
+	}
+	
+	/**
+	 * Tests if compiled table contains the same signatures as the text dump.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testCompiledTable() throws Exception {
+		Map<String, Operator> parsed = parse();
+		assertFalse(parsed.isEmpty());
+		
+		ByteArrayOutputStream compiled = new ByteArrayOutputStream();
+		CommandTable.write(parsed, compiled);
+		
+		Map<String, Operator> read = new LinkedHashMap<>();
+		CommandTable.read(new ByteArrayInputStream(compiled.toByteArray()), read);
+		
+		assertSameTable(parsed, read);
+	}
+	
+	/**
+	 * Tests if table loaded at runtime matches the text dump.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testLoadedTable() throws Exception {
+		Map<String, Operator> loaded = new LinkedHashMap<>();
+		CommandTable.load(loaded);
+		
+		assertSameTable(parse(), loaded);
+	}
+}
@@ -24,15 +24,21 @@
 package cz.zipek.sqflint.linter;
 
 import cz.zipek.sqflint.output.VoidOutput;
+import cz.zipek.sqflint.parser.SQFParserConstants;
+import cz.zipek.sqflint.parser.Token;
+import cz.zipek.sqflint.preprocessor.SQFIncludeCache;
 import cz.zipek.sqflint.preprocessor.SQFPreprocessor;
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 
 /**
@@ -41,6 +47,9 @@ import static org.junit.Assert.*;
  */
 public class LinterTest {
 	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
 	public LinterTest() {
 	}
 	
@@ -69,12 +78,12 @@ public class LinterTest {
 	private Linter parse(String input) throws Exception {
 		// Preprocessor may be required
 		SQFPreprocessor preprocessor = new SQFPreprocessor(new Options());
-		// Create linter from preprocessed input
-		Linter linter = new Linter(stringToStream(preprocessor.process(
-			input,
+		// Create linter reading preprocessed input
+		Linter linter = new Linter(preprocessor.reader(
+			new StringReader(input),
 			"file",
 			true
-		)), new Options());
+		), new Options());
 		
 		// Assign preprocessor for futher usage
 		linter.setPreprocessor(preprocessor);
@@ -85,15 +94,6 @@ public class LinterTest {
 		
 		return linter;
 	}
-	
-	/**
-	 * Creates input stream (with UTF-8 encoding) from input string.
-	 * @param input
-	 * @return 
-	 */
-	private InputStream stringToStream(String input) {
-		return new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8));
-	}
 
 	/**
 	 * Tests switch statement.
@@ -112,6 +112,24 @@ public class LinterTest {
 		assertTrue("Shouldn't return any errors", linter.getErrors().isEmpty());
 	}
 	
+	/**
+	 * Tests if characters outside of Latin-1 are accepted in strings and comments.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testUnicodeInput() throws Exception {
+		Linter linter = parse(
+			"// komentář\n" +
+			"_x = \"ěščř 日本\";\n" +
+			"_y = _x + _z;"
+		);
+		
+		assertEquals(Linter.CODE_OK, linter.start());
+		assertTrue("Shouldn't return any errors", linter.getErrors().isEmpty());
+		assertEquals(1, linter.getWarnings().size());
+		assertEquals(11, linter.getWarnings().get(0).currentToken.beginColumn);
+	}
+	
 	/**
 	 * Tests if definitions order matters.
 	 * @throws Exception 
@@ -324,4 +342,372 @@ public class LinterTest {
 		assertTrue("Should not throw warnings", linter.getWarnings().isEmpty());
 		assertTrue("Should not throw errors", linter.getErrors().isEmpty());
 	}
+	
+	/**
+	 * Tests if every usage of macro argument is replaced.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testMacroArguments() throws Exception {
+		Linter linter = parse(
+			"#define PAIR(_v) [_v, _v]\n" +
+			"#define QUOTE(x) #x\n" +
+			"private _a = 1;\n" +
+			"_b = PAIR(_a);\n" +
+			"_c = QUOTE(PAIR(_a));"
+		);
+		
+		assertEquals(Linter.CODE_OK, linter.start());
+		assertTrue("Should not throw warnings", linter.getWarnings().isEmpty());
+		assertTrue("Should not throw errors", linter.getErrors().isEmpty());
+	}
+	
+	/**
+	 * Tests if inactive conditional blocks are skipped.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testConditionalBlocks() throws Exception {
+		Linter linter = parse(
+			"#define RELEASE\n" +
+			"#ifdef DEBUG\n" +
+			"diag_log _undefined;\n" +
+			"#else\n" +
+			"private _a = 1;\n" +
+			"#endif\n" +
+			"#undef RELEASE\n" +
+			"#ifndef RELEASE\n" +
+			"diag_log _a;\n" +
+			"#endif"
+		);
+		
+		assertEquals(Linter.CODE_OK, linter.start());
+		assertTrue("Should not throw warnings", linter.getWarnings().isEmpty());
+		assertTrue("Should not throw errors", linter.getErrors().isEmpty());
+		assertFalse("Macro should be undefined", linter.getPreprocessor().getMacros().containsKey("RELEASE"));
+	}
+	
+	/**
+	 * Tests if #if and #elif blocks nest inside other conditional blocks.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testNestedConditionalBlocks() throws Exception {
+		SQFPreprocessor preprocessor = new SQFPreprocessor(new Options(), null);
+		String result = preprocessor.process(
+			"#ifdef DEBUG\n" +
+			"#if 1\n" +
+			"_a = 1;\n" +
+			"#else\n" +
+			"_a = 2;\n" +
+			"#endif\n" +
+			"_b = 2;\n" +
+			"#endif\n" +
+			"#define VERSION 0\n" +
+			"#if VERSION\n" +
+			"_c = 1;\n" +
+			"#elif 1\n" +
+			"_c = 2;\n" +
+			"#else\n" +
+			"_c = 3;\n" +
+			"#endif",
+			"file.sqf",
+			true
+		);
+		
+		assertEquals("\n\n\n\n\n\n\n\n\n\n\n\n_c = 2;\n\n\n", result);
+	}
+	
+	/**
+	 * Tests if repeated macro usage follows redefinition of macros it uses.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testRepeatedMacro() throws Exception {
+		SQFPreprocessor preprocessor = new SQFPreprocessor(new Options(), null);
+		String result = preprocessor.process(
+			"#define B 1\n" +
+			"#define G(x) [B, x]\n" +
+			"_a = G(1) + G(1);\n" +
+			"#undef B\n" +
+			"#define B 2\n" +
+			"_b = G(1);",
+			"file.sqf",
+			true
+		);
+		
+		assertEquals("\n\n_a = [1, 1] + [1, 1];\n\n\n_b = [2, 1];", result);
+	}
+	
+	/**
+	 * Tests if line continuation works with Windows line endings.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testCrlfLineContinuation() throws Exception {
+		SQFPreprocessor preprocessor = new SQFPreprocessor(new Options(), null);
+		String result = preprocessor.process(
+			"#define A 1 + \\\r\n" +
+			" 2\r\n" +
+			"_x = A;\r\n" +
+			"_y = 3;",
+			"file.sqf",
+			true
+		);
+		
+		assertEquals("\n\n_x = 1 + 2;\n_y = 3;", result);
+	}
+	
+	/**
+	 * Tests if macro is only expanded for whole identifier matching its name.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testMacroIdentifierBoundary() throws Exception {
+		SQFPreprocessor preprocessor = new SQFPreprocessor(new Options(), null);
+		String result = preprocessor.process(
+			"#define M1 a\n" +
+			"#define M10 b\n" +
+			"_x = [M1, M10, M100, M1M10, _M1];",
+			"file.sqf",
+			true
+		);
+		
+		assertEquals("\n\n_x = [a, b, M100, M1M10, _M1];", result);
+	}
+	
+	/**
+	 * Tests if macro arguments are expanded before they're pasted, like CBA macros expect.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testPastedMacroArguments() throws Exception {
+		SQFPreprocessor preprocessor = new SQFPreprocessor(new Options(), null);
+		String result = preprocessor.process(
+			"#define ADDON test\n" +
+			"#define DOUBLES(var1,var2) var1##_##var2\n" +
+			"#define TRIPLES(var1,var2,var3) var1##_##var2##_##var3\n" +
+			"#define QUOTE(var1) #var1\n" +
+			"#define GVAR(var1) DOUBLES(ADDON,var1)\n" +
+			"#define QGVAR(var1) QUOTE(GVAR(var1))\n" +
+			"#define FUNC(var1) TRIPLES(ADDON,fnc,var1)\n" +
+			"_a = GVAR(bar);\n" +
+			"_b = QGVAR(foo);\n" +
+			"_c = FUNC(baz);",
+			"file.sqf",
+			true
+		);
+		
+		assertEquals("\n\n\n\n\n\n\n_a = test_bar;\n_b = \"test_foo\";\n_c = test_fnc_baz;", result);
+	}
+	
+	/**
+	 * Tests if expanded argument is used by every kind of slot.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testExpandedArgumentSlots() throws Exception {
+		SQFPreprocessor preprocessor = new SQFPreprocessor(new Options(), null);
+		String result = preprocessor.process(
+			"#define B 1\n" +
+			"#define P(x, y) [x, #x, x##2]\n" +
+			"_a = P(B, B);\n" +
+			"#undef B\n" +
+			"#define B 3\n" +
+			"_b = P(B);",
+			"file.sqf",
+			true
+		);
+		
+		assertEquals("\n\n_a = [1, \"1\", 12];\n\n\n_b = [3, \"3\", 32];", result);
+	}
+	
+	/**
+	 * Tests macro usage with arguments spanning multiple lines.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testMultilineMacroArguments() throws Exception {
+		Linter linter = parse(
+			"#define P(x, y) [x, y]\n" +
+			"_a = P(1, // first\n" +
+			"\t2);\n" +
+			"_b = _a;"
+		);
+		
+		assertEquals(0, linter.start());
+		assertEquals(0, linter.getErrors().size());
+		
+		SQFPreprocessor preprocessor = new SQFPreprocessor(new Options(), null);
+		assertEquals(
+			"\n_a = [1, 2];\n\n_b = _a;",
+			preprocessor.process("#define P(x, y) [x, y]\n_a = P(1,\n2);\n_b = _a;", "file.sqf", true)
+		);
+	}
+	
+	/**
+	 * Tests if tokens know macro usages they were produced by.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testTokenOrigins() throws Exception {
+		Linter linter = parse(
+			"#define ONE 1\n" +
+			"#define PAIR(x) [x, ONE]\n" +
+			"_a = PAIR(2) + ONE;"
+		);
+		
+		StringBuilder origins = new StringBuilder();
+		for (Token token = linter.getNextToken(); token.kind != SQFParserConstants.EOF; token = linter.getNextToken()) {
+			origins.append(token.image).append(':').append(token.macro).append(' ');
+		}
+		
+		assertEquals("_a:null =:null [:PAIR 2:PAIR ,:PAIR 1:PAIR ]:PAIR +:null 1:ONE ;:null ", origins.toString());
+	}
+	
+	/**
+	 * Tests if changing macros of cached include doesn't affect other files.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testSharedInclude() throws Exception {
+		Path root = folder.getRoot().toPath();
+		Files.write(root.resolve("h.hpp"), "#define A 1\n#define B 2".getBytes(StandardCharsets.UTF_8));
+		
+		SQFIncludeCache cache = new SQFIncludeCache(1024 * 1024);
+		String[] results = new String[2];
+		String[] inputs = {
+			"#include \"h.hpp\"\n#define A 3\n#undef B\n_x = A + B;",
+			"#include \"h.hpp\"\n_x = A + B;"
+		};
+		
+		for (int i = 0; i < inputs.length; i++) {
+			SQFPreprocessor preprocessor = new SQFPreprocessor(new Options(), cache);
+			results[i] = preprocessor.process(inputs[i], root.resolve("file.sqf").toString(), true);
+		}
+		
+		assertEquals("\n\n\n_x = 3 + B;", results[0]);
+		assertEquals("\n_x = 1 + 2;", results[1]);
+		assertEquals(1, cache.getHits());
+	}
+	
+	/**
+	 * Tests if cached include is processed again when file it includes changes.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testChangedNestedInclude() throws Exception {
+		Path root = folder.getRoot().toPath();
+		Files.write(root.resolve("a.hpp"), "#include \"b.hpp\"".getBytes(StandardCharsets.UTF_8));
+		Files.write(root.resolve("b.hpp"), "#define X 1".getBytes(StandardCharsets.UTF_8));
+		
+		SQFIncludeCache cache = new SQFIncludeCache(1024 * 1024);
+		String input = "#include \"a.hpp\"\n_x = X;";
+		String file = root.resolve("file.sqf").toString();
+		
+		assertEquals("\n_x = 1;", new SQFPreprocessor(new Options(), cache).process(input, file, true));
+		
+		Files.write(root.resolve("b.hpp"), "#define X 22222".getBytes(StandardCharsets.UTF_8));
+		assertEquals("\n_x = 22222;", new SQFPreprocessor(new Options(), cache).process(input, file, true));
+		
+		// Notification about the change drops every header including the file
+		new SQFPreprocessor(new Options(), cache).process(input, file, true);
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.invalidate(root.resolve("b.hpp")));
+		assertEquals(0, cache.size());
+	}
+
+	/**
+	 * Tests if files including each other are reported instead of crashing.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testIncludeCycle() throws Exception {
+		Path root = folder.getRoot().toPath();
+		Files.write(root.resolve("a.hpp"), "#define A 1\n#include \"b.hpp\"".getBytes(StandardCharsets.UTF_8));
+		Files.write(root.resolve("b.hpp"), "#define B 1\n#include \"a.hpp\"".getBytes(StandardCharsets.UTF_8));
+		
+		SQFPreprocessor preprocessor = new SQFPreprocessor(new Options(), null);
+		String result = preprocessor.process(
+			"#include \"a.hpp\"\n_x = A + B;",
+			root.resolve("file.sqf").toString(),
+			true
+		);
+		
+		assertEquals("\n_x = 1 + 1;", result);
+		assertEquals(1, preprocessor.getWarnings().size());
+		assertTrue(preprocessor.getWarnings().get(0).getMessage().startsWith("Include cycle"));
+	}
+	
+	/**
+	 * Tests if macro used in its own expansion is left unexpanded.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testSelfReferencingMacro() throws Exception {
+		SQFPreprocessor preprocessor = new SQFPreprocessor(new Options(), null);
+		String result = preprocessor.process(
+			"#define A A\n" +
+			"#define B [C]\n" +
+			"#define C B\n" +
+			"#define F(x) x + F(x)\n" +
+			"_a = A;\n" +
+			"_b = B;\n" +
+			"_c = F(1);",
+			"file.sqf",
+			true
+		);
+		
+		assertEquals("\n\n\n\n_a = A;\n_b = [B];\n_c = 1 + F(1);", result);
+	}
+	
+	/**
+	 * Tests if exponentially growing macro is reported as error instead of running out of memory.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testRunawayMacro() throws Exception {
+		Linter linter = parse(
+			"#define D(x) x x x x x x x x\n" +
+			"_x = 1;\n" +
+			"_y = D(D(D(D(D(D(D(1)))))));"
+		);
+		
+		linter.start();
+		assertEquals(1, linter.getErrors().size());
+		assertEquals(3, linter.getErrors().get(0).currentToken.beginLine);
+		assertTrue(linter.getErrors().get(0).getMessage().startsWith("Macro expansion limit exceeded"));
+	}
+
+	/**
+	 * Tests if code nested deeper than the parser can handle is reported as single error.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testDeepNesting() throws Exception {
+		StringBuilder input = new StringBuilder("_x = ");
+		for (int i = 0; i < 100000; i++) {
+			input.append('[');
+		}
+		
+		Linter linter = parse(input.toString());
+		
+		linter.start();
+		assertEquals(1, linter.getErrors().size());
+		assertTrue(linter.getErrors().get(0).getMessage().startsWith("Code is nested too deeply"));
+	}
+
+	/**
+	 * Tests if cancelled linter stops without printing result.
+	 * @throws Exception 
+	 */
+	@Test(expected = LintCancelledException.class)
+	public void testCancel() throws Exception {
+		Linter linter = parse(
+			"_a = 1;\n" +
+			"_b = { _a };"
+		);
+		linter.cancel();
+		linter.start();
+	}
 }
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Jan Zípek <jan at zipek.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.zipek.sqflint.server;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jan Zípek <jan at zipek.cz>
+ */
+public class LatencyHistogramTest {
+	
+	/**
+	 * Tests if buckets cover every value without gaps or overlaps.
+	 */
+	@Test
+	public void testBuckets() {
+		assertEquals(0, LatencyHistogram.bucket(0));
+		assertEquals(3, LatencyHistogram.bucket(3));
+		assertEquals(4, LatencyHistogram.bucket(4));
+		assertEquals(8, LatencyHistogram.bucket(8));
+		assertEquals(8, LatencyHistogram.bucket(9));
+		assertEquals(9, LatencyHistogram.bucket(10));
+		
+		int last = LatencyHistogram.bucket(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(last));
+		
+		for (int i = 1; i <= last; i++) {
+			long lower = LatencyHistogram.upperBound(i - 1) + 1;
+			long upper = LatencyHistogram.upperBound(i);
+			
+			assertEquals(i, LatencyHistogram.bucket(lower));
+			assertEquals(i, LatencyHistogram.bucket(upper));
+			assertTrue("Bucket " + i + " is too wide", upper - lower <= lower / 4);
+		}
+	}
+	
+	/**
+	 * Tests percentile estimates against known distribution.
+	 */
+	@Test
+	public void testPercentile() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(0.5));
+		
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		histogram.record(-1);
+		
+		assertEquals(1001, histogram.getCount());
+		assertEquals(500500000L, histogram.getTotal());
+		assertEquals(1000000L, histogram.getMax());
+		assertEquals(1000000L, histogram.getPercentile(1));
+		
+		long median = histogram.getPercentile(0.5);
+		assertTrue("Median " + median + " is too low", median >= 500000L);
+		assertTrue("Median " + median + " is too high", median <= 500000L * 5 / 4);
+		
+		long p99 = histogram.getPercentile(0.99);
+		assertTrue("99th percentile " + p99 + " is too low", p99 >= 990000L);
+		assertTrue("99th percentile " + p99 + " is too high", p99 <= 1000000L);
+	}
+}